@@ -0,0 +1,339 @@
+package org.partiql.tutorials.ddb.streams;
+
+import com.amazon.ion.IonDecimal;
+import com.amazon.ion.IonFloat;
+import com.amazon.ion.IonInt;
+import com.amazon.ion.IonString;
+import com.amazon.ion.IonSystem;
+import com.amazon.ion.IonValue;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
+import org.partiql.lang.ast.AstVisitorBase;
+import org.partiql.lang.ast.AstWalker;
+import org.partiql.lang.ast.CaseSensitivity;
+import org.partiql.lang.ast.ExprNode;
+import org.partiql.lang.ast.FromSourceExpr;
+import org.partiql.lang.ast.Literal;
+import org.partiql.lang.ast.NAry;
+import org.partiql.lang.ast.NAryOp;
+import org.partiql.lang.ast.Path;
+import org.partiql.lang.ast.PathComponent;
+import org.partiql.lang.ast.PathComponentExpr;
+import org.partiql.lang.ast.Select;
+import org.partiql.lang.ast.VariableReference;
+import org.partiql.lang.syntax.SqlParser;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Rejects DynamoDB items that cannot satisfy a query's WHERE clause before they are turned into PartiQL values.
+ *
+ * The filter keeps the comparisons of the WHERE clause that are conjuncts of the form {@code s.attr op literal}
+ * (or {@code literal op s.attr}), where {@code s} is the alias of the query's single FROM source and op is one of
+ * {@code = <> < <= > >=}. An item is rejected only when one of these comparisons is false for the raw attribute
+ * value. Everything else passes, so the full query must still run over the items that pass.
+ *
+ * The filtered items replace the whole source collection, so the filter is only built when the FROM source is the
+ * source collection itself, e.g. {@code FROM ddbstream AS s} but not a subquery over it, and the query reads the
+ * collection nowhere else. Otherwise, including {@code FROM ddbstream} without an alias or with an {@code AT}
+ * position, it accepts everything.
+ *
+ * Only attributes whose PartiQL value compares like the raw attribute can be used, e.g. a boolean stored as the
+ * number 1 cannot. They are given as a map from attribute name to type, numbers (N) are compared with numeric
+ * literals and strings (S) are compared for (in)equality with string literals.
+ */
+public class AttributePreFilter implements Predicate<Map<String, AttributeValue>> {
+
+    private final List<Comparison> comparisons;
+
+    private AttributePreFilter(List<Comparison> comparisons) {
+        this.comparisons = comparisons;
+    }
+
+    /**
+     * Build the pre-filter of a query.
+     *
+     * @param query PartiQL query
+     * @param source name of the global bound to the filtered collection, e.g. ddbstream
+     * @param ion Ion system
+     * @param comparableAttributes attributes that can be compared on their raw value, with their DynamoDB type
+     * @return filter applying the query's simple comparisons, accepts everything if there are none
+     */
+    public static AttributePreFilter fromQuery(String query,
+                                               String source,
+                                               IonSystem ion,
+                                               Map<String, ScalarAttributeType> comparableAttributes) {
+        ExprNode node = new SqlParser(ion).parseExprNode(query);
+        if (!(node instanceof Select)) {
+            return new AttributePreFilter(Collections.emptyList());
+        }
+        Select select = (Select) node;
+        if (!(select.getFrom() instanceof FromSourceExpr) || select.getWhere() == null) {
+            // joins and unpivots bind more than one variable
+            return new AttributePreFilter(Collections.emptyList());
+        }
+        FromSourceExpr from = (FromSourceExpr) select.getFrom();
+        // the rows must be the source's items, not e.g. the reshaped rows of a subquery
+        if (!(from.getExpr() instanceof VariableReference)) {
+            return new AttributePreFilter(Collections.emptyList());
+        }
+        VariableReference fromSource = (VariableReference) from.getExpr();
+        // dropping items would renumber an AT position
+        if (!matches(fromSource.getId(), source, fromSource.getCase())
+                || from.getAsName() == null
+                || from.getAtName() != null
+                || references(node, source) != 1) {
+            return new AttributePreFilter(Collections.emptyList());
+        }
+        String alias = from.getAsName().getName();
+        List<Comparison> comparisons = new ArrayList<>();
+        for (ExprNode conjunct : conjuncts(select.getWhere(), new ArrayList<>())) {
+            Comparison comparison = Comparison.of(conjunct, alias, comparableAttributes);
+            if (comparison != null) {
+                comparisons.add(comparison);
+            }
+        }
+        return new AttributePreFilter(Collections.unmodifiableList(comparisons));
+    }
+
+    /**
+     * @return true when the query had no comparison usable on raw attributes
+     */
+    public boolean isEmpty() {
+        return comparisons.isEmpty();
+    }
+
+    /**
+     * @param item raw DynamoDB item, e.g. a stream record's new image, or null
+     * @return false only if the item cannot satisfy the query's WHERE clause
+     */
+    @Override
+    public boolean test(Map<String, AttributeValue> item) {
+        if (item == null) {
+            return true;
+        }
+        for (Comparison comparison : comparisons) {
+            if (comparison.rejects(item)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "AttributePreFilter" + comparisons;
+    }
+
+    /**
+     * @return number of variable references that may resolve to the named global, ignoring case
+     */
+    private static int references(ExprNode node, String name) {
+        int[] count = {0};
+        new AstWalker(new AstVisitorBase() {
+            @Override
+            public void visitExprNode(ExprNode expr) {
+                if (expr instanceof VariableReference && ((VariableReference) expr).getId().equalsIgnoreCase(name)) {
+                    count[0]++;
+                }
+            }
+        }).walk(node);
+        return count[0];
+    }
+
+    private static boolean matches(String name, String target, CaseSensitivity caseSensitivity) {
+        return caseSensitivity == CaseSensitivity.SENSITIVE ? name.equals(target) : name.equalsIgnoreCase(target);
+    }
+
+    private static List<ExprNode> conjuncts(ExprNode node, List<ExprNode> result) {
+        if (node instanceof NAry && ((NAry) node).getOp() == NAryOp.AND) {
+            for (ExprNode arg : ((NAry) node).getArgs()) {
+                conjuncts(arg, result);
+            }
+        } else {
+            result.add(node);
+        }
+        return result;
+    }
+
+    private static class Comparison {
+        private final String attribute;
+        private final ScalarAttributeType type;
+        private final NAryOp op;
+        private final BigDecimal number;
+        private final String string;
+
+        private Comparison(String attribute, ScalarAttributeType type, NAryOp op, BigDecimal number, String string) {
+            this.attribute = attribute;
+            this.type = type;
+            this.op = op;
+            this.number = number;
+            this.string = string;
+        }
+
+        /**
+         * @return the comparison, or null if the conjunct is not a usable comparison
+         */
+        static Comparison of(ExprNode conjunct,
+                             String alias,
+                             Map<String, ScalarAttributeType> comparableAttributes) {
+            if (!(conjunct instanceof NAry)) {
+                return null;
+            }
+            NAry nary = (NAry) conjunct;
+            if (nary.getArgs().size() != 2) {
+                return null;
+            }
+            NAryOp op = nary.getOp();
+            ExprNode left = nary.getArgs().get(0);
+            ExprNode right = nary.getArgs().get(1);
+            if (left instanceof Literal && right instanceof Path) {
+                op = flip(op);
+                ExprNode tmp = left;
+                left = right;
+                right = tmp;
+            }
+            if (!(left instanceof Path) || !(right instanceof Literal)) {
+                return null;
+            }
+            String attribute = attribute((Path) left, alias, comparableAttributes);
+            if (attribute == null) {
+                return null;
+            }
+            ScalarAttributeType type = comparableAttributes.get(attribute);
+            IonValue literal = ((Literal) right).getIonValue();
+            switch (op) {
+                case EQ:
+                case NE:
+                case LT:
+                case LTE:
+                case GT:
+                case GTE:
+                    break;
+                default:
+                    return null;
+            }
+            if (type == ScalarAttributeType.N) {
+                BigDecimal number = number(literal);
+                return number == null ? null : new Comparison(attribute, type, op, number, null);
+            } else if (type == ScalarAttributeType.S && (op == NAryOp.EQ || op == NAryOp.NE)
+                    && literal instanceof IonString && !literal.isNullValue()) {
+                return new Comparison(attribute, type, op, null, ((IonString) literal).stringValue());
+            }
+            return null;
+        }
+
+        /**
+         * @return the attribute named by {@code alias.attribute}, or null for any other path
+         */
+        private static String attribute(Path path,
+                                        String alias,
+                                        Map<String, ScalarAttributeType> comparableAttributes) {
+            if (!(path.getRoot() instanceof VariableReference) || path.getComponents().size() != 1) {
+                return null;
+            }
+            VariableReference root = (VariableReference) path.getRoot();
+            if (!matches(root.getId(), alias, root.getCase())) {
+                return null;
+            }
+            PathComponent component = path.getComponents().get(0);
+            if (!(component instanceof PathComponentExpr)
+                    || !(((PathComponentExpr) component).getExpr() instanceof Literal)) {
+                return null;
+            }
+            IonValue name = ((Literal) ((PathComponentExpr) component).getExpr()).getIonValue();
+            if (!(name instanceof IonString) || name.isNullValue()) {
+                return null;
+            }
+            String result = null;
+            for (String attribute : comparableAttributes.keySet()) {
+                if (matches(((IonString) name).stringValue(), attribute, ((PathComponentExpr) component).getCase())) {
+                    if (result != null) {
+                        // ambiguous case insensitive lookup
+                        return null;
+                    }
+                    result = attribute;
+                }
+            }
+            return result;
+        }
+
+        private static BigDecimal number(IonValue literal) {
+            if (literal.isNullValue()) {
+                return null;
+            } else if (literal instanceof IonInt) {
+                return new BigDecimal(((IonInt) literal).bigIntegerValue());
+            } else if (literal instanceof IonDecimal) {
+                return ((IonDecimal) literal).bigDecimalValue();
+            } else if (literal instanceof IonFloat) {
+                double d = ((IonFloat) literal).doubleValue();
+                return Double.isNaN(d) || Double.isInfinite(d) ? null : BigDecimal.valueOf(d);
+            }
+            return null;
+        }
+
+        /**
+         * The operator with its operands swapped, {@code 5 < s.x} is {@code s.x > 5}.
+         */
+        private static NAryOp flip(NAryOp op) {
+            switch (op) {
+                case LT:
+                    return NAryOp.GT;
+                case LTE:
+                    return NAryOp.GTE;
+                case GT:
+                    return NAryOp.LT;
+                case GTE:
+                    return NAryOp.LTE;
+                default:
+                    return op;
+            }
+        }
+
+        boolean rejects(Map<String, AttributeValue> item) {
+            AttributeValue value = item.get(attribute);
+            if (value == null) {
+                // the mapper fills in a default, let the query decide
+                return false;
+            }
+            int cmp;
+            if (type == ScalarAttributeType.N) {
+                if (value.getN() == null) {
+                    return false;
+                }
+                cmp = new BigDecimal(value.getN()).compareTo(number);
+            } else {
+                if (value.getS() == null) {
+                    return false;
+                }
+                cmp = value.getS().equals(string) ? 0 : 1;
+            }
+            switch (op) {
+                case EQ:
+                    return cmp != 0;
+                case NE:
+                    return cmp == 0;
+                case LT:
+                    return cmp >= 0;
+                case LTE:
+                    return cmp > 0;
+                case GT:
+                    return cmp <= 0;
+                case GTE:
+                    return cmp < 0;
+                default:
+                    return false;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return attribute + " " + op + " " + (type == ScalarAttributeType.N ? number : "'" + string + "'");
+        }
+    }
+}
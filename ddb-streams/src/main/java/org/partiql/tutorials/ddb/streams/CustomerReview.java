@@ -5,9 +5,12 @@ import com.amazon.ion.IonSystem;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.dynamodbv2.datamodeling.*;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.ScalarAttributeType;
 import org.partiql.lang.eval.ExprValue;
 import org.partiql.lang.eval.ExprValueFactory;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -17,6 +20,25 @@ import java.util.Map;
 @DynamoDBTable(tableName = "CustomerReviews")
 public class CustomerReview {
 
+    /**
+     * Attributes whose value in {@link #asExprValue(ExprValueFactory)} compares the same as the raw DynamoDB
+     * attribute value, for use with {@link AttributePreFilter}. verified_purchase is stored as a number but
+     * mapped to a boolean.
+     */
+    public static final Map<String, ScalarAttributeType> COMPARABLE_ATTRIBUTES;
+
+    static {
+        Map<String, ScalarAttributeType> attributes = new HashMap<>();
+        attributes.put("customer_id", ScalarAttributeType.S);
+        attributes.put("review_id", ScalarAttributeType.S);
+        attributes.put("product_title", ScalarAttributeType.S);
+        attributes.put("star_rating", ScalarAttributeType.N);
+        attributes.put("helpful_votes", ScalarAttributeType.N);
+        attributes.put("total_votes", ScalarAttributeType.N);
+        attributes.put("review_heading", ScalarAttributeType.S);
+        COMPARABLE_ATTRIBUTES = Collections.unmodifiableMap(attributes);
+    }
+
     String customerId;
     String reviewId;
     String productTitle;
@@ -157,7 +179,16 @@ public class CustomerReview {
      * @return PartiQL value corresponding to this instance.
      */
     public ExprValue asExprValue(ExprValueFactory evf) {
-        IonSystem ion = evf.getIon();
+        return evf.newFromIonValue(asIonStruct(evf.getIon()));
+    }
+
+    /**
+     * Given an Ion system create the Ion struct backing the PartiQL value for this instance.
+     *
+     * @param ion Ion system
+     * @return Ion struct with one field per DynamoDB attribute
+     */
+    public IonStruct asIonStruct(IonSystem ion) {
         IonStruct result = ion.newEmptyStruct();
         result.add("customer_id", ion.newString(getCustomerId()));
         result.add("review_id", ion.newString(getReviewId()));
@@ -167,6 +198,6 @@ public class CustomerReview {
         result.add("total_votes", ion.newInt(getTotalVotes()));
         result.add("verified_purchase", ion.newBool(isVerifiedPurchase()));
         result.add("review_heading", ion.newString(getReviewHeading()));
-        return evf.newFromIonValue(result);
+        return result;
     }
 }
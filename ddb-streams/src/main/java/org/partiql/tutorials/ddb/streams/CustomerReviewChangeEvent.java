@@ -0,0 +1,147 @@
+package org.partiql.tutorials.ddb.streams;
+
+import com.amazon.ion.IonStruct;
+import com.amazon.ion.IonSystem;
+import com.amazon.ion.IonValue;
+import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
+import com.amazonaws.services.dynamodbv2.model.Record;
+import com.amazonaws.services.dynamodbv2.model.StreamRecord;
+import org.partiql.lang.eval.ExprValue;
+import org.partiql.lang.eval.ExprValueFactory;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Maps a DynamoDB Stream record of the CustomerReviews table to a single PartiQL value describing the change.
+ *
+ * For example, a MODIFY record that lowers a review's star rating maps to
+ *
+ * <pre>
+ * {
+ *   eventName: "MODIFY",
+ *   sequenceNumber: "000000000000000000042",
+ *   keys: { customer_id: "16374060" },
+ *   old: { customer_id: "16374060", ..., star_rating: 5, ... },
+ *   new: { customer_id: "16374060", ..., star_rating: 4, ... },
+ *   changed: { star_rating: 4 }
+ * }
+ * </pre>
+ *
+ * {@code old} is absent (MISSING in PartiQL) for INSERT records and {@code new} is absent for REMOVE records.
+ * {@code changed} holds the new value of every attribute that differs between the two images, attributes that
+ * were removed are set to null.
+ */
+public final class CustomerReviewChangeEvent {
+
+    private CustomerReviewChangeEvent() {
+    }
+
+    /**
+     * Given a stream record, a DynamoDB mapper and a PartiQL Expression Value Factory create the change event
+     * value for the record.
+     *
+     * @param record DynamoDB Stream record
+     * @param mapper DynamoDB mapper
+     * @param evf PartiQL expression value factory
+     * @return PartiQL struct describing the change
+     */
+    public static ExprValue asExprValue(Record record, DynamoDBMapper mapper, ExprValueFactory evf) {
+        return evf.newFromIonValue(asIonStruct(record, mapper, evf.getIon()));
+    }
+
+    /**
+     * Given a stream record, a DynamoDB mapper and an Ion system create the Ion struct backing the change event.
+     *
+     * @param record DynamoDB Stream record
+     * @param mapper DynamoDB mapper
+     * @param ion Ion system
+     * @return Ion struct describing the change
+     */
+    public static IonStruct asIonStruct(Record record, DynamoDBMapper mapper, IonSystem ion) {
+        StreamRecord streamRecord = record.getDynamodb();
+        IonStruct oldImage = image(streamRecord.getOldImage(), mapper, ion);
+        IonStruct newImage = image(streamRecord.getNewImage(), mapper, ion);
+
+        IonStruct result = ion.newEmptyStruct();
+        result.add("eventName", ion.newString(record.getEventName()));
+        result.add("sequenceNumber", ion.newString(streamRecord.getSequenceNumber()));
+        result.add("keys", keys(streamRecord.getKeys(), ion));
+        if (oldImage != null) {
+            result.add("old", oldImage);
+        }
+        if (newImage != null) {
+            result.add("new", newImage);
+        }
+        result.add("changed", changed(oldImage, newImage, ion));
+        return result;
+    }
+
+    private static IonStruct image(Map<String, AttributeValue> image, DynamoDBMapper mapper, IonSystem ion) {
+        if (image == null) {
+            return null;
+        }
+        return CustomerReview.marshallIntoObject(image, mapper).asIonStruct(ion);
+    }
+
+    /**
+     * Key attributes are scalars, only S, N and B attribute values can appear.
+     */
+    private static IonStruct keys(Map<String, AttributeValue> keys, IonSystem ion) {
+        IonStruct result = ion.newEmptyStruct();
+        if (keys == null) {
+            return result;
+        }
+        for (Map.Entry<String, AttributeValue> key : keys.entrySet()) {
+            AttributeValue value = key.getValue();
+            if (value.getS() != null) {
+                result.add(key.getKey(), ion.newString(value.getS()));
+            } else if (value.getN() != null) {
+                BigDecimal n = new BigDecimal(value.getN());
+                if (n.scale() <= 0) {
+                    result.add(key.getKey(), ion.newInt(n.toBigIntegerExact()));
+                } else {
+                    result.add(key.getKey(), ion.newDecimal(n));
+                }
+            } else if (value.getB() != null) {
+                ByteBuffer bytes = value.getB().duplicate();
+                byte[] blob = new byte[bytes.remaining()];
+                bytes.get(blob);
+                result.add(key.getKey(), ion.newBlob(blob));
+            } else {
+                throw new IllegalStateException("Unsupported key attribute value " + value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Compute the attributes that differ between the old and the new image.
+     *
+     * @param oldImage old image or null
+     * @param newImage new image or null
+     * @param ion Ion system
+     * @return struct with the new value of each changed attribute, null for attributes no longer present
+     */
+    static IonStruct changed(IonStruct oldImage, IonStruct newImage, IonSystem ion) {
+        IonStruct result = ion.newEmptyStruct();
+        if (newImage != null) {
+            for (IonValue newValue : newImage) {
+                IonValue oldValue = oldImage == null ? null : oldImage.get(newValue.getFieldName());
+                if (!newValue.equals(oldValue)) {
+                    result.add(newValue.getFieldName(), newValue.clone());
+                }
+            }
+        }
+        if (oldImage != null) {
+            for (IonValue oldValue : oldImage) {
+                if (newImage == null || !newImage.containsKey(oldValue.getFieldName())) {
+                    result.add(oldValue.getFieldName(), ion.newNull());
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,283 @@
+package org.partiql.tutorials.ddb.streams;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreams;
+import com.amazonaws.services.dynamodbv2.model.GetRecordsRequest;
+import com.amazonaws.services.dynamodbv2.model.GetRecordsResult;
+import com.amazonaws.services.dynamodbv2.model.Record;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reads batches of records from a DynamoDB Stream ahead of the consumer so that GetRecords calls overlap with
+ * the processing of the previous batches.
+ *
+ * Each shard is fetched on the given executor, one GetRecords call at a time, until it holds
+ * {@code batchesPerShard} unread batches or the unread batches of all shards add up to {@code maxBufferedBytes}.
+ * Fetches still running count against {@code maxBufferedBytes} with the average size of the batches seen so far,
+ * until a first batch arrives every shard may have one fetch running. Taking a batch frees room and schedules the
+ * next fetches, starting with the shard that has waited longest, so every shard gets its turn when room is short.
+ * No executor thread is held while a shard waits for room.
+ *
+ * Records of a shard are returned in order, batches of different shards are returned in the order they arrive.
+ * Like {@link StreamShardReader}, a shard that returns no records is polled again on the next call and a call
+ * returns null once every open shard returned no records, later calls keep polling so the stream can be tailed.
+ * A shard is done once it is closed.
+ */
+public class PrefetchingShardReader implements RecordBatchSource, Closeable {
+
+    private final AmazonDynamoDBStreams streamsClient;
+    private final Executor executor;
+    private final int batchesPerShard;
+    private final long maxBufferedBytes;
+    private final List<ShardFetcher> fetchers = new ArrayList<>();
+    // index of the first fetcher scheduleFetches tries, guarded by the lock
+    private int nextFetcher;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition batchReady = lock.newCondition();
+    private final Deque<Batch> ready = new ArrayDeque<>();
+    private long bufferedBytes;
+    private int runningFetches;
+    private long fetchedBatches;
+    private long fetchedBytes;
+    private RuntimeException failure;
+    private boolean closed;
+
+    /**
+     * @param streamsClient DynamoDB Streams client used to issue GetRecords requests
+     * @param shardIters starting shard iterators, one per shard
+     * @param batchesPerShard number of unread batches fetched ahead for each shard
+     * @param maxBufferedBytes upper bound on the size of all unread batches, at least one batch is always fetched
+     * @param executor runs the GetRecords calls
+     */
+    public PrefetchingShardReader(AmazonDynamoDBStreams streamsClient,
+                                  Collection<String> shardIters,
+                                  int batchesPerShard,
+                                  long maxBufferedBytes,
+                                  Executor executor) {
+        if (batchesPerShard < 1) {
+            throw new IllegalArgumentException("Batches per shard must be positive, got " + batchesPerShard);
+        }
+        if (maxBufferedBytes < 1) {
+            throw new IllegalArgumentException("Max buffered bytes must be positive, got " + maxBufferedBytes);
+        }
+        this.streamsClient = streamsClient;
+        this.executor = executor;
+        this.batchesPerShard = batchesPerShard;
+        this.maxBufferedBytes = maxBufferedBytes;
+        for (String shardIter : shardIters) {
+            fetchers.add(new ShardFetcher(shardIter));
+        }
+        lock.lock();
+        try {
+            scheduleFetches();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for the next prefetched batch.
+     *
+     * @return the next non-empty batch of records, or null once every open shard returned no records or was closed
+     */
+    @Override
+    public List<Record> nextBatch() {
+        lock.lock();
+        try {
+            // poll the shards that came back empty again
+            for (ShardFetcher fetcher : fetchers) {
+                fetcher.empty = false;
+            }
+            scheduleFetches();
+            while (ready.isEmpty() && !allEmpty() && failure == null && !closed) {
+                batchReady.await();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            Batch batch = ready.pollFirst();
+            if (batch == null) {
+                return null;
+            }
+            batch.fetcher.unread--;
+            bufferedBytes -= batch.sizeBytes;
+            scheduleFetches();
+            return batch.records;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for stream records", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return size in bytes of the batches fetched but not yet returned by {@link #nextBatch()}
+     */
+    public long getBufferedBytes() {
+        lock.lock();
+        try {
+            return bufferedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop fetching, fetches already running complete but their records are dropped.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            ready.clear();
+            bufferedBytes = 0;
+            batchReady.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Start a fetch for every idle shard with room for another batch, round-robin. Must hold the lock.
+     */
+    private void scheduleFetches() {
+        int start = nextFetcher;
+        for (int i = 0; i < fetchers.size() && !closed; i++) {
+            int index = (start + i) % fetchers.size();
+            ShardFetcher fetcher = fetchers.get(index);
+            if (fetcher.running || fetcher.done || fetcher.empty || fetcher.unread >= batchesPerShard) {
+                continue;
+            }
+            if (!hasRoom()) {
+                // this shard goes first once room frees up
+                nextFetcher = index;
+                return;
+            }
+            fetcher.running = true;
+            runningFetches++;
+            nextFetcher = (index + 1) % fetchers.size();
+            executor.execute(fetcher);
+        }
+    }
+
+    /**
+     * Whether every open shard returned no records since the current {@link #nextBatch()} call. Must hold the lock.
+     */
+    private boolean allEmpty() {
+        for (ShardFetcher fetcher : fetchers) {
+            if (!fetcher.done && !fetcher.empty) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether one more batch fits under the byte cap, always true when nothing is buffered or being fetched.
+     */
+    private boolean hasRoom() {
+        if (bufferedBytes == 0 && runningFetches == 0) {
+            return true;
+        }
+        if (fetchedBatches == 0) {
+            // batch size unknown until the first batch arrives, each shard fetches one at a time
+            return true;
+        }
+        long averageBatchBytes = fetchedBytes / fetchedBatches;
+        return bufferedBytes + (runningFetches + 1) * averageBatchBytes < maxBufferedBytes;
+    }
+
+    private static long sizeBytes(List<Record> records) {
+        long size = 0;
+        for (Record record : records) {
+            Long recordSize = record.getDynamodb().getSizeBytes();
+            if (recordSize != null) {
+                size += recordSize;
+            }
+        }
+        return size;
+    }
+
+    private class ShardFetcher implements Runnable {
+
+        // all fields are guarded by the reader's lock
+        private String shardIter;
+        private int unread;
+        private boolean running;
+        // the last GetRecords call returned no records, not polled again until the next call to nextBatch
+        private boolean empty;
+        private boolean done;
+
+        ShardFetcher(String shardIter) {
+            this.shardIter = shardIter;
+        }
+
+        @Override
+        public void run() {
+            GetRecordsResult getRecordsResult;
+            try {
+                getRecordsResult = streamsClient.getRecords(new GetRecordsRequest()
+                        .withShardIterator(shardIter));
+            } catch (RuntimeException e) {
+                lock.lock();
+                try {
+                    running = false;
+                    runningFetches--;
+                    failure = e;
+                    batchReady.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+
+            List<Record> records = getRecordsResult.getRecords();
+            lock.lock();
+            try {
+                running = false;
+                runningFetches--;
+                shardIter = getRecordsResult.getNextShardIterator();
+                if (shardIter == null) {
+                    done = true;
+                } else {
+                    empty = records.isEmpty();
+                }
+                if (!records.isEmpty() && !closed) {
+                    Batch batch = new Batch(this, records, sizeBytes(records));
+                    ready.addLast(batch);
+                    unread++;
+                    bufferedBytes += batch.sizeBytes;
+                    fetchedBatches++;
+                    fetchedBytes += batch.sizeBytes;
+                }
+                batchReady.signalAll();
+                scheduleFetches();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static class Batch {
+        final ShardFetcher fetcher;
+        final List<Record> records;
+        final long sizeBytes;
+
+        Batch(ShardFetcher fetcher, List<Record> records, long sizeBytes) {
+            this.fetcher = fetcher;
+            this.records = records;
+            this.sizeBytes = sizeBytes;
+        }
+    }
+}
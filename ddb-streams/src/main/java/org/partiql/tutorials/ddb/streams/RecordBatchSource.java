@@ -0,0 +1,16 @@
+package org.partiql.tutorials.ddb.streams;
+
+import com.amazonaws.services.dynamodbv2.model.Record;
+
+import java.util.List;
+
+/**
+ * Source of batches of DynamoDB Stream records.
+ */
+public interface RecordBatchSource {
+
+    /**
+     * @return the next non-empty batch of records, or null once the source is exhausted
+     */
+    List<Record> nextBatch();
+}
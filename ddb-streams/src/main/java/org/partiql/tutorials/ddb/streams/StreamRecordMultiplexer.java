@@ -0,0 +1,403 @@
+package org.partiql.tutorials.ddb.streams;
+
+import com.amazon.ion.IonValue;
+import com.amazon.ion.IonWriter;
+import com.amazon.ion.system.IonBinaryWriterBuilder;
+import com.amazonaws.services.dynamodbv2.model.Record;
+import org.partiql.lang.eval.ExprValue;
+import org.partiql.lang.eval.ExprValueFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Reads a DynamoDB Stream once and hands every record, converted to a PartiQL value once, to many subscribers.
+ *
+ * Each subscriber, typically the input of one query, has its own bounded buffer and a policy deciding what
+ * happens when the buffer is full because its query is slower than the stream:
+ *
+ * <ul>
+ *     <li>{@link SlowConsumerPolicy#BLOCK} the stream read waits, slowing down every subscriber</li>
+ *     <li>{@link SlowConsumerPolicy#DROP} the oldest buffered value is dropped</li>
+ *     <li>{@link SlowConsumerPolicy#SPILL} values are written to temporary files and read back in order</li>
+ * </ul>
+ *
+ * Subscribers must be added before {@link #run()} starts reading. A subscriber is an {@link Iterable} that can
+ * be iterated once, e.g. as the collection behind {@code ExprValueFactory#newList}.
+ *
+ * {@link #run()} must not be called on a thread that later consumes a {@link SlowConsumerPolicy#BLOCK} subscriber,
+ * it would wait forever for that subscriber to make room. Run it on its own thread and consume the subscribers
+ * while it reads.
+ *
+ * Every subscriber receives the same value, typically on different threads. Its Ion value is made read-only
+ * before it is handed out, since mutable Ion values are not safe even for concurrent reads, and must not be
+ * modified, e.g. clone it first.
+ */
+public class StreamRecordMultiplexer implements Runnable {
+
+    public enum SlowConsumerPolicy {
+        BLOCK,
+        DROP,
+        SPILL
+    }
+
+    private final RecordBatchSource source;
+    private final Function<Record, ExprValue> converter;
+    private final ExprValueFactory valueFactory;
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private volatile boolean started;
+    private volatile long recordsRead;
+
+    /**
+     * @param source source of the stream's records, read once
+     * @param converter turns a stream record into a PartiQL value, called once per record
+     * @param valueFactory PartiQL expression value factory, used to read back spilled values
+     */
+    public StreamRecordMultiplexer(RecordBatchSource source,
+                                   Function<Record, ExprValue> converter,
+                                   ExprValueFactory valueFactory) {
+        this.source = source;
+        this.converter = converter;
+        this.valueFactory = valueFactory;
+    }
+
+    /**
+     * @param name name used in error messages and spill file names
+     * @param capacity number of values buffered in memory for this subscriber
+     * @param policy what to do when the buffer is full
+     * @return the subscriber's view of the stream
+     */
+    public Subscriber subscribe(String name, int capacity, SlowConsumerPolicy policy) {
+        if (started) {
+            throw new IllegalStateException("Cannot subscribe " + name + " after the stream read started");
+        }
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive, got " + capacity);
+        }
+        Subscriber subscriber = new Subscriber(name, capacity, policy);
+        subscribers.add(subscriber);
+        return subscriber;
+    }
+
+    /**
+     * Read the stream and deliver each record to every open subscriber.
+     */
+    @Override
+    public void run() {
+        started = true;
+        try {
+            List<Record> records;
+            while ((records = source.nextBatch()) != null) {
+                for (Record record : records) {
+                    ExprValue value = converter.apply(record);
+                    // shared by all subscribers, read-only values can be read concurrently
+                    value.getIonValue().makeReadOnly();
+                    recordsRead++;
+                    for (Subscriber subscriber : subscribers) {
+                        subscriber.offer(value);
+                    }
+                }
+            }
+            for (Subscriber subscriber : subscribers) {
+                subscriber.complete(null);
+            }
+        } catch (RuntimeException e) {
+            for (Subscriber subscriber : subscribers) {
+                subscriber.complete(e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return number of records read and converted
+     */
+    public long getRecordsRead() {
+        return recordsRead;
+    }
+
+    public class Subscriber implements Iterable<ExprValue>, Closeable {
+
+        private final String name;
+        private final int capacity;
+        private final SlowConsumerPolicy policy;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+        private final Deque<ExprValue> buffer = new ArrayDeque<>();
+        // spill files, each holding up to capacity values, oldest first
+        private final Deque<Path> spilled = new ArrayDeque<>();
+        private Path spillPath;
+        private OutputStream spillOut;
+        private IonWriter spillWriter;
+        private int spillCount;
+        private boolean done;
+        private boolean closed;
+        private RuntimeException failure;
+        private boolean iterated;
+        private long delivered;
+        private long dropped;
+        private long spilledValues;
+
+        Subscriber(String name, int capacity, SlowConsumerPolicy policy) {
+            this.name = name;
+            this.capacity = capacity;
+            this.policy = policy;
+        }
+
+        void offer(ExprValue value) {
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                if (isSpilling() || buffer.size() >= capacity) {
+                    switch (policy) {
+                        case BLOCK:
+                            while (buffer.size() >= capacity && !closed) {
+                                notFull.awaitUninterruptibly();
+                            }
+                            if (closed) {
+                                return;
+                            }
+                            break;
+                        case DROP:
+                            buffer.removeFirst();
+                            dropped++;
+                            break;
+                        case SPILL:
+                            spill(value);
+                            notEmpty.signal();
+                            return;
+                        default:
+                            throw new IllegalStateException("Unknown policy " + policy);
+                    }
+                }
+                buffer.addLast(value);
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void complete(RuntimeException e) {
+            lock.lock();
+            try {
+                done = true;
+                failure = e;
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * The subscriber can be iterated once, the iterator waits for values until the stream is read.
+         */
+        @Override
+        public Iterator<ExprValue> iterator() {
+            lock.lock();
+            try {
+                if (iterated) {
+                    throw new IllegalStateException("Subscriber " + name + " can only be iterated once");
+                }
+                iterated = true;
+            } finally {
+                lock.unlock();
+            }
+            return new Iterator<ExprValue>() {
+                @Override
+                public boolean hasNext() {
+                    lock.lock();
+                    try {
+                        return awaitValue();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+
+                @Override
+                public ExprValue next() {
+                    lock.lock();
+                    try {
+                        if (!awaitValue()) {
+                            throw new NoSuchElementException("Iterator exhausted");
+                        }
+                        ExprValue value = buffer.removeFirst();
+                        delivered++;
+                        notFull.signal();
+                        return value;
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            };
+        }
+
+        /**
+         * Stop receiving values, e.g. when the query ends early, and delete any spill files.
+         */
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                closed = true;
+                buffer.clear();
+                closeSpillWriter();
+                for (Path path : spilled) {
+                    deleteQuietly(path);
+                }
+                spilled.clear();
+                notFull.signalAll();
+                notEmpty.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return number of values returned by the iterator
+         */
+        public long getDelivered() {
+            lock.lock();
+            try {
+                return delivered;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return number of values dropped because the buffer was full (DROP policy)
+         */
+        public long getDropped() {
+            lock.lock();
+            try {
+                return dropped;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return number of values written to spill files (SPILL policy)
+         */
+        public long getSpilled() {
+            lock.lock();
+            try {
+                return spilledValues;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Wait until a value is buffered or no more values will come. Must hold the lock.
+         */
+        private boolean awaitValue() {
+            while (true) {
+                if (closed) {
+                    return false;
+                }
+                if (buffer.isEmpty() && isSpilling()) {
+                    unspill();
+                }
+                if (!buffer.isEmpty()) {
+                    return true;
+                }
+                if (done) {
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    return false;
+                }
+                notEmpty.awaitUninterruptibly();
+            }
+        }
+
+        private boolean isSpilling() {
+            return spillWriter != null || !spilled.isEmpty();
+        }
+
+        private void spill(ExprValue value) {
+            try {
+                if (spillWriter == null) {
+                    spillPath = Files.createTempFile("partiql-" + name + "-", ".ion");
+                    spillOut = Files.newOutputStream(spillPath);
+                    spillWriter = IonBinaryWriterBuilder.standard().build(spillOut);
+                }
+                value.getIonValue().writeTo(spillWriter);
+                spillCount++;
+                spilledValues++;
+                if (spillCount == capacity) {
+                    closeSpillWriter();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot spill values of subscriber " + name, e);
+            }
+        }
+
+        /**
+         * Move the oldest spill file back into the buffer, the buffer must be empty.
+         */
+        private void unspill() {
+            if (spilled.isEmpty()) {
+                closeSpillWriter();
+            }
+            Path path = spilled.removeFirst();
+            try {
+                for (IonValue value : valueFactory.getIon().getLoader().load(path.toFile())) {
+                    buffer.addLast(valueFactory.newFromIonValue(value));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read spilled values of subscriber " + name, e);
+            } finally {
+                deleteQuietly(path);
+            }
+        }
+
+        private void closeSpillWriter() {
+            if (spillWriter == null) {
+                return;
+            }
+            try {
+                spillWriter.close();
+                spillOut.close();
+                spilled.addLast(spillPath);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot spill values of subscriber " + name, e);
+            } finally {
+                spillWriter = null;
+                spillOut = null;
+                spillPath = null;
+                spillCount = 0;
+            }
+        }
+
+        private void deleteQuietly(Path path) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                // temporary file, nothing else to do
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package org.partiql.tutorials.ddb.streams;
+
+import com.amazonaws.services.dynamodbv2.model.Record;
+import org.partiql.lang.eval.ExprValue;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Reactive Streams publisher of the records in a DynamoDB Stream, each record turned into a PartiQL value.
+ * See https://github.com/reactive-streams/reactive-streams-jvm
+ *
+ * Shards are only polled while the subscriber has outstanding demand, so a slow subscriber pauses the
+ * GetRecords calls instead of buffering the stream. All polling and signalling happens on the given executor.
+ * The publisher reads the stream once and therefore accepts a single subscriber.
+ */
+public class StreamRecordPublisher implements Publisher<ExprValue> {
+
+    private final RecordBatchSource reader;
+    private final Function<Record, ExprValue> converter;
+    private final Executor executor;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    /**
+     * @param reader source of the stream's records, e.g. a {@link StreamShardReader}
+     * @param converter turns a stream record into a PartiQL value
+     * @param executor runs the polling of the shards and the calls to the subscriber
+     */
+    public StreamRecordPublisher(RecordBatchSource reader,
+                                 Function<Record, ExprValue> converter,
+                                 Executor executor) {
+        this.reader = reader;
+        this.converter = converter;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super ExprValue> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("Subscriber must not be null");
+        }
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("Publisher only accepts a single subscriber"));
+            return;
+        }
+        RecordSubscription subscription = new RecordSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    private class RecordSubscription implements Subscription, Runnable {
+
+        private final Subscriber<? super ExprValue> subscriber;
+        private final Deque<Record> currRecords = new ArrayDeque<>();
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean done;
+        private volatile Throwable invalidRequest;
+
+        RecordSubscription(Subscriber<? super ExprValue> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                // rule 3.9: signal the error from the executor like every other signal
+                invalidRequest = new IllegalArgumentException("Request must be positive, got " + n);
+            } else {
+                long current;
+                do {
+                    current = demand.get();
+                    if (current == Long.MAX_VALUE) {
+                        break;
+                    }
+                } while (!demand.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            done = true;
+        }
+
+        private void schedule() {
+            if (pending.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                drain();
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            try {
+                while (!done) {
+                    if (invalidRequest != null) {
+                        done = true;
+                        subscriber.onError(invalidRequest);
+                        return;
+                    }
+                    if (demand.get() == 0) {
+                        // pause polling until the subscriber asks for more
+                        return;
+                    }
+                    if (currRecords.isEmpty()) {
+                        List<Record> records = reader.nextBatch();
+                        if (records == null) {
+                            done = true;
+                            subscriber.onComplete();
+                            return;
+                        }
+                        currRecords.addAll(records);
+                        continue;
+                    }
+                    ExprValue value = converter.apply(currRecords.removeFirst());
+                    if (demand.get() != Long.MAX_VALUE) {
+                        demand.decrementAndGet();
+                    }
+                    subscriber.onNext(value);
+                }
+            } catch (RuntimeException e) {
+                if (!done) {
+                    done = true;
+                    subscriber.onError(e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.partiql.tutorials.ddb.streams;
+
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreams;
+import com.amazonaws.services.dynamodbv2.model.GetRecordsRequest;
+import com.amazonaws.services.dynamodbv2.model.GetRecordsResult;
+import com.amazonaws.services.dynamodbv2.model.Record;
+
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads batches of records from a DynamoDB Stream by polling its shard iterators in round-robin order.
+ * See https://docs.aws.amazon.com/amazondynamodb/latest/developerguide/Streams.LowLevel.Walkthrough.html
+ */
+public class StreamShardReader implements RecordBatchSource {
+
+    private final AmazonDynamoDBStreams streamsClient;
+    private final Deque<String> shardsQ;
+
+    /**
+     * @param streamsClient DynamoDB Streams client used to issue GetRecords requests
+     * @param shardsQ queue of starting shard iterators, updated in place as shards are read
+     */
+    public StreamShardReader(AmazonDynamoDBStreams streamsClient, Deque<String> shardsQ) {
+        this.streamsClient = streamsClient;
+        this.shardsQ = shardsQ;
+    }
+
+    /**
+     * Poll the shards until one of them returns records.
+     *
+     * @return the next non-empty batch of records, or null once every shard iterator returned nothing or was closed
+     */
+    @Override
+    public List<Record> nextBatch() {
+        Set<String> emptyIters = new HashSet<>();
+        while (!shardsQ.isEmpty()) {
+            if (emptyIters.size() == shardsQ.size()) {
+                // all iterators previous returned nothing so we end the iterator
+                return null;
+            }
+
+            String currShardIter = shardsQ.removeFirst();
+
+            GetRecordsResult getRecordsResult = streamsClient.getRecords(new GetRecordsRequest()
+                    .withShardIterator(currShardIter));
+            List<Record> records = getRecordsResult.getRecords();
+            if (!records.isEmpty()) {
+                // remove current shard iterator from the empty list as we got something
+                emptyIters.remove(currShardIter);
+            }
+            String nextShardIter = getRecordsResult.getNextShardIterator();
+            if (nextShardIter != null) {
+                shardsQ.addLast(nextShardIter);
+            }
+            if (records.isEmpty()) {
+                // note that the next iter came from an empty result
+                emptyIters.add(nextShardIter);
+            } else {
+                return records;
+            }
+        }
+        // exhausted all of the iterators (closed)
+        return null;
+    }
+}
@@ -0,0 +1,188 @@
+package org.partiql.tutorials.ddb.streams.sink;
+
+import com.amazon.ion.IonWriter;
+import com.amazon.ion.system.IonBinaryWriterBuilder;
+import com.amazon.ion.system.IonTextWriterBuilder;
+import org.partiql.lang.eval.ExprValue;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes the rows of a PartiQL query result to a channel as they are produced.
+ *
+ * The result is iterated lazily, one row at a time, so the query's output is never held in memory as a whole.
+ * Bytes go through a fixed size buffer before reaching the channel.
+ *
+ * <pre>
+ * try (ResultSink sink = ResultSink.create(ResultSink.Format.JSON_LINES, FileChannel.open(path, CREATE, WRITE))) {
+ *     sink.write(expr.eval(session));
+ * }
+ * </pre>
+ */
+public abstract class ResultSink implements Closeable, Flushable {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    public enum Format {
+        /** Binary Ion, a single Ion stream with one top-level value per row */
+        ION_BINARY,
+        /** Text Ion, one top-level value per line */
+        ION_TEXT,
+        /** Newline delimited JSON, one JSON value per line */
+        JSON_LINES
+    }
+
+    private final ChannelOutputStream channelOut;
+    private long rowCount;
+
+    protected ResultSink(WritableByteChannel channel, int bufferSize) {
+        this.channelOut = new ChannelOutputStream(channel, bufferSize);
+    }
+
+    public static ResultSink create(Format format, WritableByteChannel channel) {
+        return create(format, channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param format output format
+     * @param channel destination, closed when the sink is closed
+     * @param bufferSize size in bytes of the buffer in front of the channel
+     * @return sink writing to the channel in the given format
+     */
+    public static ResultSink create(Format format, WritableByteChannel channel, int bufferSize) {
+        switch (format) {
+            case ION_BINARY:
+                return new IonBinarySink(channel, bufferSize);
+            case ION_TEXT:
+                return new LineSink(channel, bufferSize, IonTextWriterBuilder.standard().immutable());
+            case JSON_LINES:
+                return new LineSink(channel, bufferSize, IonTextWriterBuilder.json().immutable());
+            default:
+                throw new IllegalStateException("Unknown format " + format);
+        }
+    }
+
+    /**
+     * Write each row of a query result. A collection result is written row by row, any other result is a single row.
+     *
+     * @param result PartiQL query result
+     * @return number of rows written by this call
+     * @throws IOException if the channel cannot be written
+     */
+    public long write(ExprValue result) throws IOException {
+        long rows = 0;
+        switch (result.getType()) {
+            case LIST:
+            case BAG:
+            case SEXP:
+                for (ExprValue row : result) {
+                    writeRow(row);
+                    rows++;
+                }
+                break;
+            default:
+                writeRow(result);
+                rows++;
+        }
+        rowCount += rows;
+        return rows;
+    }
+
+    /**
+     * @return number of rows written since the sink was created
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    protected abstract void writeRow(ExprValue row) throws IOException;
+
+    /**
+     * Stream that Ion writers can write to without pushing the buffer to the channel when they flush or close.
+     */
+    protected OutputStream rowOutput() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                channelOut.write(b);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                channelOut.write(bytes, offset, length);
+            }
+        };
+    }
+
+    @Override
+    public void flush() throws IOException {
+        channelOut.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channelOut.close();
+    }
+
+    /**
+     * All rows share one binary Ion writer, and with it the symbol table.
+     */
+    private static class IonBinarySink extends ResultSink {
+
+        private final IonWriter writer;
+
+        IonBinarySink(WritableByteChannel channel, int bufferSize) {
+            super(channel, bufferSize);
+            this.writer = IonBinaryWriterBuilder.standard().build(rowOutput());
+        }
+
+        @Override
+        protected void writeRow(ExprValue row) throws IOException {
+            row.getIonValue().writeTo(writer);
+            // hand the row to the buffer, the binary writer would otherwise hold every row until closed
+            writer.flush();
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writer.flush();
+            super.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                writer.close();
+            } finally {
+                super.close();
+            }
+        }
+    }
+
+    /**
+     * Each row gets its own text writer so that rows are separated by a newline only.
+     */
+    private static class LineSink extends ResultSink {
+
+        private final IonTextWriterBuilder builder;
+        private final OutputStream out;
+
+        LineSink(WritableByteChannel channel, int bufferSize, IonTextWriterBuilder builder) {
+            super(channel, bufferSize);
+            this.builder = builder;
+            this.out = rowOutput();
+        }
+
+        @Override
+        protected void writeRow(ExprValue row) throws IOException {
+            try (IonWriter writer = builder.build(out)) {
+                row.getIonValue().writeTo(writer);
+            }
+            out.write('\n');
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.partiql.tutorials.ddb.streams.sketches;
+
+import org.partiql.lang.eval.ExprValue;
+
+/**
+ * Count-Min sketch estimating how often each value was seen using {@code width * depth} counters.
+ * See http://dimacs.rutgers.edu/~graham/pubs/papers/cm-full.pdf
+ *
+ * Estimates never undercount. With probability {@code 1 - e^-depth} they overcount by at most
+ * {@code e / width} times the total number of values added.
+ */
+public class CountMinSketch {
+
+    public static final int DEFAULT_WIDTH = 2048;
+    public static final int DEFAULT_DEPTH = 5;
+
+    private final int width;
+    private final int depth;
+    private final long[][] counters;
+    private long total;
+
+    public CountMinSketch() {
+        this(DEFAULT_WIDTH, DEFAULT_DEPTH);
+    }
+
+    /**
+     * @param width number of counters per row, bounds the error
+     * @param depth number of rows, bounds the probability of exceeding the error
+     */
+    public CountMinSketch(int width, int depth) {
+        if (width < 1 || depth < 1) {
+            throw new IllegalArgumentException("Width and depth must be positive, got " + width + " and " + depth);
+        }
+        this.width = width;
+        this.depth = depth;
+        this.counters = new long[depth][width];
+    }
+
+    /**
+     * Add a value to the sketch, unknown values (null and missing) are ignored.
+     *
+     * @param value PartiQL value
+     */
+    public void add(ExprValue value) {
+        if (!SketchHash.isUnknown(value)) {
+            addHash(SketchHash.hash(value), 1);
+        }
+    }
+
+    void addHash(long hash, long count) {
+        for (int row = 0; row < depth; row++) {
+            counters[row][index(hash, row)] += count;
+        }
+        total += count;
+    }
+
+    /**
+     * @param value PartiQL value
+     * @return estimated number of times the value was added
+     */
+    public long estimate(ExprValue value) {
+        if (SketchHash.isUnknown(value)) {
+            return 0;
+        }
+        long hash = SketchHash.hash(value);
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            min = Math.min(min, counters[row][index(hash, row)]);
+        }
+        return min;
+    }
+
+    /**
+     * @return number of values added to this sketch
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Fold another sketch, e.g. built from a different shard, into this one.
+     *
+     * @param other sketch with the same width and depth
+     */
+    public void merge(CountMinSketch other) {
+        if (other.width != width || other.depth != depth) {
+            throw new IllegalArgumentException("Cannot merge Count-Min sketches of " + width + "x" + depth +
+                    " and " + other.width + "x" + other.depth);
+        }
+        for (int row = 0; row < depth; row++) {
+            for (int i = 0; i < width; i++) {
+                counters[row][i] += other.counters[row][i];
+            }
+        }
+        total += other.total;
+    }
+
+    /**
+     * Double hashing, derives the row's hash from two halves of the value's hash.
+     */
+    private int index(long hash, int row) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        int combined = h1 + row * h2;
+        return (combined & Integer.MAX_VALUE) % width;
+    }
+}
@@ -0,0 +1,111 @@
+package org.partiql.tutorials.ddb.streams.sketches;
+
+import org.partiql.lang.eval.ExprValue;
+
+/**
+ * HyperLogLog sketch estimating the number of distinct values seen using {@code 2^precision} bytes.
+ * See https://algo.inria.fr/flajolet/Publications/FlFuGaMe07.pdf
+ *
+ * The relative standard error is about {@code 1.04 / sqrt(2^precision)}, e.g. 1.6% for the default precision of 12.
+ */
+public class HyperLogLog {
+
+    public static final int DEFAULT_PRECISION = 12;
+    public static final int MIN_PRECISION = 4;
+    public static final int MAX_PRECISION = 18;
+
+    private final int precision;
+    private final byte[] registers;
+
+    public HyperLogLog() {
+        this(DEFAULT_PRECISION);
+    }
+
+    /**
+     * @param precision number of bits of the hash used to select a register, between 4 and 18
+     */
+    public HyperLogLog(int precision) {
+        if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+            throw new IllegalArgumentException("Precision must be between " + MIN_PRECISION +
+                    " and " + MAX_PRECISION + ", got " + precision);
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Add a value to the sketch, unknown values (null and missing) are ignored.
+     *
+     * @param value PartiQL value
+     */
+    public void add(ExprValue value) {
+        if (!SketchHash.isUnknown(value)) {
+            addHash(SketchHash.hash(value));
+        }
+    }
+
+    void addHash(long hash) {
+        int index = (int) (hash >>> (64 - precision));
+        // the guard bit bounds the rank to 64 - precision + 1
+        long rest = (hash << precision) | (1L << (precision - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+        if (rank > registers[index]) {
+            registers[index] = rank;
+        }
+    }
+
+    /**
+     * @return estimated number of distinct values added to this sketch
+     */
+    public long estimate() {
+        int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+        double estimate = alpha(m) * m * m / sum;
+        if (estimate <= 2.5 * m && zeros > 0) {
+            // small range correction: linear counting
+            estimate = m * Math.log((double) m / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * Fold another sketch, e.g. built from a different shard, into this one.
+     *
+     * @param other sketch with the same precision
+     */
+    public void merge(HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("Cannot merge HyperLogLog sketches of precision " +
+                    precision + " and " + other.precision);
+        }
+        for (int i = 0; i < registers.length; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    private static double alpha(int m) {
+        switch (m) {
+            case 16:
+                return 0.673;
+            case 32:
+                return 0.697;
+            case 64:
+                return 0.709;
+            default:
+                return 0.7213 / (1 + 1.079 / m);
+        }
+    }
+}
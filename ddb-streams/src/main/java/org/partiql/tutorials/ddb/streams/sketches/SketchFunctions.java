@@ -0,0 +1,155 @@
+package org.partiql.tutorials.ddb.streams.sketches;
+
+import com.amazon.ion.IntegerSize;
+import com.amazon.ion.IonInt;
+import com.amazon.ion.IonList;
+import com.amazon.ion.IonStruct;
+import com.amazon.ion.IonSystem;
+import org.partiql.lang.eval.Environment;
+import org.partiql.lang.eval.ExprFunction;
+import org.partiql.lang.eval.ExprValue;
+import org.partiql.lang.eval.ExprValueFactory;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * PartiQL functions aggregating a collection through a sketch.
+ *
+ * The collection, typically a {@code SELECT VALUE} over the stream, is consumed once as it is produced, so memory
+ * use is bounded by the sketch and not by the number of records.
+ *
+ * <pre>
+ * approx_count_distinct(SELECT VALUE r.customer_id FROM ddbstream AS r)
+ * approx_count_distinct(SELECT VALUE r.customer_id FROM ddbstream AS r, 14)   -- HyperLogLog precision
+ * approx_top_k(SELECT VALUE r.product_title FROM ddbstream AS r, 3)   -- [{item: ..., count: ...}, ...], k <= 1000
+ * </pre>
+ *
+ * {@link CountMinSketch} has no function, a single frequency is counted exactly in the same memory. It is meant to
+ * be built per shard and combined with {@link CountMinSketch#merge(CountMinSketch)}.
+ */
+public final class SketchFunctions {
+
+    private SketchFunctions() {
+    }
+
+    /**
+     * @param valueFactory PartiQL expression value factory used to create the results
+     * @return all sketch functions, to be added to a {@code CompilerPipeline}
+     */
+    public static List<ExprFunction> all(ExprValueFactory valueFactory) {
+        return Arrays.asList(
+                new ApproxCountDistinct(valueFactory),
+                new ApproxTopK(valueFactory));
+    }
+
+    private static void checkArity(String name, List<ExprValue> args, int min, int max) {
+        if (args.size() < min || args.size() > max) {
+            throw new IllegalArgumentException(name + " takes between " + min + " and " + max +
+                    " arguments, got " + args.size());
+        }
+    }
+
+    private static ExprValue collection(String name, ExprValue arg) {
+        switch (arg.getType()) {
+            case LIST:
+            case BAG:
+            case SEXP:
+                return arg;
+            default:
+                throw new IllegalArgumentException(name + " expects a collection, got " + arg.getType());
+        }
+    }
+
+    private static int intArg(String name, ExprValue arg) {
+        if (!(arg.getIonValue() instanceof IonInt) || arg.getIonValue().isNullValue()) {
+            throw new IllegalArgumentException(name + " expects an integer, got " + arg.getType());
+        }
+        IonInt value = (IonInt) arg.getIonValue();
+        if (value.getIntegerSize() != IntegerSize.INT) {
+            // intValue() would silently truncate
+            throw new IllegalArgumentException(name + " expects an integer that fits in 32 bits, got " + value);
+        }
+        return value.intValue();
+    }
+
+    /**
+     * {@code approx_count_distinct(collection [, precision])} estimates the number of distinct values.
+     */
+    static class ApproxCountDistinct implements ExprFunction {
+
+        private final ExprValueFactory valueFactory;
+
+        ApproxCountDistinct(ExprValueFactory valueFactory) {
+            this.valueFactory = valueFactory;
+        }
+
+        @Override
+        public String getName() {
+            return "approx_count_distinct";
+        }
+
+        @Override
+        public ExprValue call(Environment env, List<ExprValue> args) {
+            checkArity(getName(), args, 1, 2);
+            HyperLogLog sketch = args.size() == 2
+                    ? new HyperLogLog(intArg(getName(), args.get(1)))
+                    : new HyperLogLog();
+            for (ExprValue value : collection(getName(), args.get(0))) {
+                sketch.add(value);
+            }
+            return valueFactory.newInt(sketch.estimate());
+        }
+    }
+
+    /**
+     * {@code approx_top_k(collection, k)} returns the k most frequent values with their estimated counts.
+     * k is at most {@link #MAX_K}, the sketch tracks {@code max(100, 10 * k)} values.
+     */
+    static class ApproxTopK implements ExprFunction {
+
+        static final int MAX_K = 1000;
+        private static final int CAPACITY_PER_K = 10;
+
+        private final ExprValueFactory valueFactory;
+
+        ApproxTopK(ExprValueFactory valueFactory) {
+            this.valueFactory = valueFactory;
+        }
+
+        @Override
+        public String getName() {
+            return "approx_top_k";
+        }
+
+        @Override
+        public ExprValue call(Environment env, List<ExprValue> args) {
+            checkArity(getName(), args, 2, 2);
+            int k = intArg(getName(), args.get(1));
+            if (k < 1 || k > MAX_K) {
+                throw new IllegalArgumentException(getName() + " expects k between 1 and " + MAX_K + ", got " + k);
+            }
+            TopK sketch = new TopK(Math.max(TopK.DEFAULT_CAPACITY, k * CAPACITY_PER_K));
+            for (ExprValue value : collection(getName(), args.get(0))) {
+                sketch.add(value);
+            }
+            return valueFactory.newFromIonValue(asIonList(sketch.top(k), valueFactory.getIon()));
+        }
+    }
+
+    /**
+     * @param counters heavy hitters
+     * @param ion Ion system
+     * @return list of {@code {item: ..., count: ...}} structs
+     */
+    public static IonList asIonList(List<TopK.Counter> counters, IonSystem ion) {
+        IonList result = ion.newEmptyList();
+        for (TopK.Counter counter : counters) {
+            IonStruct entry = ion.newEmptyStruct();
+            entry.add("item", counter.getItem().clone());
+            entry.add("count", ion.newInt(counter.getCount()));
+            result.add(entry);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,58 @@
+package org.partiql.tutorials.ddb.streams.sketches;
+
+import org.partiql.lang.eval.ExprValue;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 64-bit hash of PartiQL values shared by all sketches.
+ *
+ * Values are hashed through their Ion text so that equal values hash equally across shards and processes,
+ * which is what makes sketches built from different shards mergeable.
+ */
+final class SketchHash {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private SketchHash() {
+    }
+
+    static long hash(ExprValue value) {
+        return hash(value.getIonValue().toString());
+    }
+
+    static long hash(String text) {
+        long h = FNV_OFFSET_BASIS;
+        for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+            h ^= (b & 0xff);
+            h *= FNV_PRIME;
+        }
+        return mix(h);
+    }
+
+    /**
+     * MurmurHash3 finalizer, spreads the FNV-1a result over all 64 bits.
+     */
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Values that SQL aggregates skip.
+     */
+    static boolean isUnknown(ExprValue value) {
+        switch (value.getType()) {
+            case NULL:
+            case MISSING:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
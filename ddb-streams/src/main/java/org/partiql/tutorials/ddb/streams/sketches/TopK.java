@@ -0,0 +1,187 @@
+package org.partiql.tutorials.ddb.streams.sketches;
+
+import com.amazon.ion.IonValue;
+import org.partiql.lang.eval.ExprValue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Heavy hitters sketch (Space-Saving) tracking the most frequent values with a fixed number of counters.
+ * See https://www.cs.ucsb.edu/sites/default/files/documents/2005-23.pdf
+ *
+ * Any value seen more than {@code n / capacity} times out of {@code n} values is guaranteed to be tracked.
+ * Counts may overestimate by at most the value's {@link Counter#getError()}.
+ *
+ * Counters are kept ordered by count, so adding a value, including evicting the least frequent one, takes
+ * O(log capacity).
+ */
+public class TopK {
+
+    public static final int DEFAULT_CAPACITY = 100;
+
+    // least frequent first, ties broken by the order counters were created in
+    private static final Comparator<Counter> BY_COUNT =
+            Comparator.comparingLong(Counter::getCount).thenComparingLong(counter -> counter.id);
+
+    private final int capacity;
+    private final Map<String, Counter> counters;
+    private final TreeSet<Counter> byCount = new TreeSet<>(BY_COUNT);
+    private long nextId;
+
+    public TopK() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of values tracked, should be a few times larger than the k asked for
+     */
+    public TopK(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive, got " + capacity);
+        }
+        this.capacity = capacity;
+        this.counters = new HashMap<>();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Add a value to the sketch, unknown values (null and missing) are ignored.
+     *
+     * @param value PartiQL value
+     */
+    public void add(ExprValue value) {
+        if (!SketchHash.isUnknown(value)) {
+            IonValue ionValue = value.getIonValue();
+            add(ionValue.toString(), ionValue, 1, 0);
+        }
+    }
+
+    private void add(String key, IonValue item, long count, long error) {
+        Counter counter = counters.get(key);
+        if (counter != null) {
+            // re-insert to keep the counters ordered
+            byCount.remove(counter);
+            counter.count += count;
+            counter.error += error;
+            byCount.add(counter);
+        } else if (counters.size() < capacity) {
+            track(key, new Counter(item.clone(), count, error));
+        } else {
+            // replace the least frequent value, the new value may have been counted as the evicted one
+            Counter min = byCount.pollFirst();
+            counters.remove(min.item.toString());
+            track(key, new Counter(item.clone(), min.count + count, min.count + error));
+        }
+    }
+
+    private void track(String key, Counter counter) {
+        counter.id = nextId++;
+        counters.put(key, counter);
+        byCount.add(counter);
+    }
+
+    /**
+     * @param k number of values to return
+     * @return up to k tracked values, most frequent first
+     */
+    public List<Counter> top(int k) {
+        List<Counter> result = new ArrayList<>(Math.min(k, counters.size()));
+        Iterator<Counter> mostFrequent = byCount.descendingIterator();
+        while (result.size() < k && mostFrequent.hasNext()) {
+            result.add(mostFrequent.next());
+        }
+        return result;
+    }
+
+    /**
+     * Fold another sketch, e.g. built from a different shard, into this one.
+     *
+     * A value missing from a full sketch may have been seen there up to that sketch's minimum count times, so the
+     * minimum is added to both its count and error. Counts keep overestimating by at most their error.
+     * See https://arxiv.org/abs/1202.5570
+     *
+     * @param other sketch with the same capacity
+     */
+    public void merge(TopK other) {
+        if (other.capacity != capacity) {
+            throw new IllegalArgumentException("Cannot merge TopK sketches of capacity " +
+                    capacity + " and " + other.capacity);
+        }
+        // a sketch that is not full never evicted, so values it misses were never seen
+        long myMin = counters.size() == capacity ? byCount.first().count : 0;
+        long otherMin = other.counters.size() == capacity ? other.byCount.first().count : 0;
+        List<Counter> merged = new ArrayList<>(counters.size() + other.counters.size());
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            Counter mine = entry.getValue();
+            Counter theirs = other.counters.get(entry.getKey());
+            if (theirs != null) {
+                merged.add(new Counter(mine.item, mine.count + theirs.count, mine.error + theirs.error));
+            } else {
+                merged.add(new Counter(mine.item, mine.count + otherMin, mine.error + otherMin));
+            }
+        }
+        for (Map.Entry<String, Counter> entry : other.counters.entrySet()) {
+            if (!counters.containsKey(entry.getKey())) {
+                Counter theirs = entry.getValue();
+                merged.add(new Counter(theirs.item.clone(), theirs.count + myMin, theirs.error + myMin));
+            }
+        }
+        // keep the capacity most frequent
+        merged.sort(Comparator.comparingLong(Counter::getCount).reversed());
+        counters.clear();
+        byCount.clear();
+        for (Counter counter : merged.subList(0, Math.min(capacity, merged.size()))) {
+            track(counter.item.toString(), counter);
+        }
+    }
+
+    /**
+     * A tracked value with its estimated count.
+     */
+    public static class Counter {
+        private final IonValue item;
+        private long count;
+        private long error;
+        // position among counters with the same count, set when the sketch starts tracking it
+        private long id;
+
+        Counter(IonValue item, long count, long error) {
+            this.item = item;
+            this.count = count;
+            this.error = error;
+        }
+
+        public IonValue getItem() {
+            return item;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return upper bound on how much {@link #getCount()} overestimates
+         */
+        public long getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return "Counter{" +
+                    "item=" + item +
+                    ", count=" + count +
+                    ", error=" + error +
+                    '}';
+        }
+    }
+}
@@ -17,25 +17,49 @@ import org.junit.jupiter.api.BeforeEach;
 import org.partiql.lang.CompilerPipeline;
 import org.partiql.lang.eval.ExprValue;
 import org.partiql.lang.eval.ExprValueFactory;
+import org.partiql.tutorials.ddb.streams.sketches.SketchFunctions;
 import org.partiql.tutorials.ddb.streams.utils.AwsDynamoDbLocalTestUtils;
 import org.partiql.tutorials.ddb.streams.utils.CustomerReviewsTsvFileUtils;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 public class AbstractCustomerReviews {
 
     private static final IonSystem ION = IonSystemBuilder.standard().build();
     protected static String CUSTOMER_REVIEWS = "CustomerReviews";
-    protected final CompilerPipeline pipeline = CompilerPipeline.standard(ION);
+    protected ExprValueFactory valueFactory = ExprValueFactory.standard(ION);
+    protected final CompilerPipeline pipeline = newPipeline(valueFactory);
     protected DynamoDB ddb;
-    protected ExprValueFactory valueFactory = pipeline.getValueFactory();
     private AmazonDynamoDBLocal localDynamoDB;
     private AmazonDynamoDB ddbClient;
     private AmazonDynamoDBStreams streamsClient;
     private String streamArn;
     private DescribeTableResult describeTable;
-    private DynamoDBMapper mapper;
+    protected DynamoDBMapper mapper;
+    private ExecutorService fetchExecutor;
+    private final List<PrefetchingShardReader> prefetchers = new ArrayList<>();
+
+    /**
+     * Standard pipeline extended with the sketch functions, e.g. approx_count_distinct.
+     *
+     * @param valueFactory PartiQL expression value factory
+     * @return compiler pipeline
+     */
+    private static CompilerPipeline newPipeline(ExprValueFactory valueFactory) {
+        CompilerPipeline.Builder builder = CompilerPipeline.builder(valueFactory);
+        SketchFunctions.all(valueFactory).forEach(builder::addFunction);
+        return builder.build();
+    }
+
+    protected AmazonDynamoDBStreams getStreamsClient() {
+        return streamsClient;
+    }
 
     protected static void INFO(String... msg) {
         System.out.println("[INFO] " + String.join(" ", msg));
@@ -48,10 +72,12 @@ public class AbstractCustomerReviews {
         localDynamoDB = DynamoDBEmbedded.create();
         ddbClient = localDynamoDB.amazonDynamoDB();
         ddb = new DynamoDB(ddbClient);
+        fetchExecutor = Executors.newCachedThreadPool();
     }
 
     @AfterAll
     public void tearDown() {
+        fetchExecutor.shutdownNow();
         ddbClient.shutdown();
     }
 
@@ -68,14 +94,18 @@ public class AbstractCustomerReviews {
 
     @AfterEach
     public void testTearDown() {
+        // stop the background fetches of readers that were not read to the end
+        prefetchers.forEach(PrefetchingShardReader::close);
+        prefetchers.clear();
         deleteTable(CUSTOMER_REVIEWS);
     }
 
     /**
      * Grab all records from all shards and turn them into ExprValues.
      *
-     * @param viewType stream view type NEW_IMAGE or OLD_IMAGE used to select the image from within the record.
-     * @return iterator over #newImage() from each record in the stream
+     * @param viewType stream view type NEW_IMAGE or OLD_IMAGE used to select the image from within the record,
+     *                 NEW_AND_OLD_IMAGES to get the whole change (see {@link CustomerReviewChangeEvent}).
+     * @return iterator over the selected image, or the change event, of each record in the stream
      */
     protected Iterable<ExprValue> getRecordUpdates(StreamViewType viewType) {
         Deque<String> shardsQ = getShardIds();
@@ -83,24 +113,136 @@ public class AbstractCustomerReviews {
         return () -> it;
     }
 
+    /**
+     * Grab the records from all shards whose image may satisfy the pre-filter and turn them into ExprValues.
+     * Records the pre-filter rejects are never turned into ExprValues.
+     *
+     * @param viewType stream view type NEW_IMAGE or OLD_IMAGE used to select the image from within the record.
+     * @param preFilter filter on the raw image, e.g. {@link #preFilter(String, String)}
+     * @return iterator over the selected image from each record in the stream that passes the pre-filter
+     */
+    protected Iterable<ExprValue> getRecordUpdates(StreamViewType viewType, AttributePreFilter preFilter) {
+        Predicate<Record> accept;
+        if (StreamViewType.NEW_IMAGE == viewType) {
+            accept = r -> preFilter.test(r.getDynamodb().getNewImage());
+        } else if (StreamViewType.OLD_IMAGE == viewType) {
+            accept = r -> preFilter.test(r.getDynamodb().getOldImage());
+        } else {
+            throw new IllegalStateException("Only accept NEW_IMAGE or OLD_IMAGE for view type");
+        }
+        Iterator<ExprValue> it = new RecordExprValueIterator(getShardIds(), makeConverter(viewType), accept);
+        return () -> it;
+    }
+
+    /**
+     * @param query PartiQL query over CustomerReview images
+     * @param source name of the global bound to the filtered images
+     * @return pre-filter with the query's simple comparisons on CustomerReview attributes
+     */
+    protected AttributePreFilter preFilter(String query, String source) {
+        return AttributePreFilter.fromQuery(query, source, ION, CustomerReview.COMPARABLE_ATTRIBUTES);
+    }
+
     protected Iterator<ExprValue> makeIterator(Deque<String> shardsQ,
                                                StreamViewType viewType) {
         if (StreamViewType.NEW_IMAGE == viewType) {
             return new NewImageExprValueIterator(shardsQ);
         } else if (StreamViewType.OLD_IMAGE == viewType) {
             return new OldImageExprValueIterator(shardsQ);
+        } else if (StreamViewType.NEW_AND_OLD_IMAGES == viewType) {
+            return new RecordExprValueIterator(shardsQ, this::changeEventValue);
         } else {
-            throw new IllegalStateException("Only accept NEW_IMAGE or OLD_IMAGE for view type");
+            throw new IllegalStateException("Only accept NEW_IMAGE, OLD_IMAGE or NEW_AND_OLD_IMAGES for view type");
+        }
+    }
+
+    /**
+     * Publish all records from all shards as ExprValues, polling the shards only as fast as the subscriber requests.
+     *
+     * @param viewType stream view type NEW_IMAGE or OLD_IMAGE used to select the image from within the record,
+     *                 NEW_AND_OLD_IMAGES to get the whole change (see {@link CustomerReviewChangeEvent}).
+     * @param executor executor polling the shards and signalling the subscriber
+     * @return publisher of the image from each record in the stream
+     */
+    protected StreamRecordPublisher getRecordUpdatesPublisher(StreamViewType viewType, Executor executor) {
+        return new StreamRecordPublisher(newRecordSource(getShardIds()), makeConverter(viewType), executor);
+    }
+
+    /**
+     * Multiplexer reading all records from all shards once, to be shared by many queries.
+     *
+     * @param viewType stream view type NEW_IMAGE or OLD_IMAGE used to select the image from within the record,
+     *                 NEW_AND_OLD_IMAGES to get the whole change (see {@link CustomerReviewChangeEvent}).
+     * @return multiplexer, add subscribers then run it to read the stream
+     */
+    protected StreamRecordMultiplexer newMultiplexer(StreamViewType viewType) {
+        return new StreamRecordMultiplexer(newRecordSource(getShardIds()), makeConverter(viewType), valueFactory);
+    }
+
+    /**
+     * Reader over the given shards, prefetching when {@link #getPrefetchBatches()} is positive.
+     * Prefetching readers are closed after each test.
+     *
+     * @param shardsQ queue of starting shard iterators
+     * @return source of the shards' records
+     */
+    protected RecordBatchSource newRecordSource(Deque<String> shardsQ) {
+        if (getPrefetchBatches() > 0) {
+            PrefetchingShardReader prefetcher = new PrefetchingShardReader(streamsClient, shardsQ,
+                    getPrefetchBatches(), getPrefetchBytes(), fetchExecutor);
+            prefetchers.add(prefetcher);
+            return prefetcher;
+        } else {
+            return new StreamShardReader(streamsClient, shardsQ);
         }
     }
 
+    /**
+     * @return number of batches to fetch ahead for each shard, 0 reads a batch only once the previous one is consumed
+     */
+    protected int getPrefetchBatches() {
+        return 0;
+    }
+
+    /**
+     * @return upper bound in bytes on the records fetched ahead
+     */
+    protected long getPrefetchBytes() {
+        return 4 * 1024 * 1024;
+    }
+
+    protected Function<Record, ExprValue> makeConverter(StreamViewType viewType) {
+        if (StreamViewType.NEW_IMAGE == viewType) {
+            return this::newImageValue;
+        } else if (StreamViewType.OLD_IMAGE == viewType) {
+            return this::oldImageValue;
+        } else if (StreamViewType.NEW_AND_OLD_IMAGES == viewType) {
+            return this::changeEventValue;
+        } else {
+            throw new IllegalStateException("Only accept NEW_IMAGE, OLD_IMAGE or NEW_AND_OLD_IMAGES for view type");
+        }
+    }
+
+    /**
+     * One reader per shard, e.g. to process shards independently and combine their results.
+     *
+     * @return readers over each shard of the stream
+     */
+    protected List<StreamShardReader> getShardReaders() {
+        List<StreamShardReader> readers = new ArrayList<>();
+        for (String shardIter : getShardIds()) {
+            readers.add(new StreamShardReader(streamsClient, new ArrayDeque<>(Collections.singleton(shardIter))));
+        }
+        return readers;
+    }
+
     /**
      * Gets all the shard Ids as a Queue.
      * See https://docs.aws.amazon.com/amazondynamodb/latest/developerguide/Streams.LowLevel.Walkthrough.html
      *
      * @return queue of all shard Ids
      */
-    private Deque<String> getShardIds() {
+    protected Deque<String> getShardIds() {
         // get the starting shard iterators--probably insufficient if the topology of shards change...
         Deque<String> shardIters = new ArrayDeque<>();
         String lastEvaluatedShardId = null;
@@ -187,71 +329,100 @@ public class AbstractCustomerReviews {
     }
 
 
-    protected class OldImageExprValueIterator extends NewImageExprValueIterator {
+    /**
+     * Given a stream record return its new image as a PartiQL value.
+     *
+     * @param record DynamoDB Stream record
+     * @return the new image, or PartiQL null when the record has no new image (e.g. REMOVE)
+     */
+    protected ExprValue newImageValue(Record record) {
+        Map<String, AttributeValue> newImage = record.getDynamodb().getNewImage();
+        if (newImage == null) {
+            return valueFactory.getNullValue();
+        } else {
+            return CustomerReview.marshallIntoObject(newImage, mapper).asExprValue(valueFactory);
+        }
+    }
+
+    /**
+     * Given a stream record return its old image as a PartiQL value.
+     *
+     * @param record DynamoDB Stream record
+     * @return the old image, or PartiQL null when the record has no old image (e.g. INSERT)
+     */
+    protected ExprValue oldImageValue(Record record) {
+        Map<String, AttributeValue> oldImage = record.getDynamodb().getOldImage();
+        if (oldImage == null) {
+            return valueFactory.getNullValue();
+        } else {
+            return CustomerReview.marshallIntoObject(oldImage, mapper).asExprValue(valueFactory);
+        }
+    }
+
+    /**
+     * Given a stream record return the whole change as a PartiQL value.
+     *
+     * @param record DynamoDB Stream record
+     * @return change event with the record's keys, old and new images and changed attributes
+     */
+    protected ExprValue changeEventValue(Record record) {
+        return CustomerReviewChangeEvent.asExprValue(record, mapper, valueFactory);
+    }
+
+    protected class OldImageExprValueIterator extends RecordExprValueIterator {
 
         public OldImageExprValueIterator(Deque<String> shardsQ) {
-            super(shardsQ);
+            super(shardsQ, AbstractCustomerReviews.this::oldImageValue);
         }
+    }
 
-        @Override
-        public ExprValue next() {
-            if (!hasNext()) {
-                throw new NoSuchElementException("Iterator exhausted");
-            }
+    protected class NewImageExprValueIterator extends RecordExprValueIterator {
 
-            // wrap the next record into a value
-            Map<String, AttributeValue> oldImage = currRecords.removeFirst().getDynamodb().getOldImage();
-            if (oldImage == null) {
-                return valueFactory.getNullValue();
-            } else {
-                return CustomerReview.marshallIntoObject(oldImage, mapper).asExprValue(valueFactory);
-            }
+        public NewImageExprValueIterator(Deque<String> shardsQ) {
+            super(shardsQ, AbstractCustomerReviews.this::newImageValue);
         }
     }
-    protected class NewImageExprValueIterator implements Iterator<ExprValue> {
 
-        private final Deque<String> shardsQ;
+    protected class RecordExprValueIterator implements Iterator<ExprValue> {
+
+        private final RecordBatchSource reader;
+        private final Function<Record, ExprValue> converter;
+        private final Predicate<Record> accept;
         Deque<Record> currRecords;
 
-        public NewImageExprValueIterator(Deque<String> shardsQ) {
-            this.shardsQ = shardsQ;
+        public RecordExprValueIterator(Deque<String> shardsQ, Function<Record, ExprValue> converter) {
+            this(shardsQ, converter, r -> true);
+        }
+
+        public RecordExprValueIterator(Deque<String> shardsQ,
+                                       Function<Record, ExprValue> converter,
+                                       Predicate<Record> accept) {
+            this.reader = newRecordSource(shardsQ);
+            this.converter = converter;
+            this.accept = accept;
             currRecords = new ArrayDeque<>();
         }
 
         @Override
         public boolean hasNext() {
-            Set<String> emptyIters = new HashSet<>();
             while (currRecords.isEmpty()) {
-                if (emptyIters.size() == shardsQ.size()) {
-                    // all iterators previous returned nothing so we end the iterator
+                List<Record> records = reader.nextBatch();
+                if (records == null) {
+                    if (reader instanceof PrefetchingShardReader) {
+                        // the iterator ends here, stop fetching ahead
+                        ((PrefetchingShardReader) reader).close();
+                    }
                     return false;
                 }
-
-                String currShardIter = shardsQ.removeFirst();
-
-                GetRecordsResult getRecordsResult = streamsClient.getRecords(new GetRecordsRequest()
-                        .withShardIterator(currShardIter));
-                List<Record> records = getRecordsResult.getRecords();
-                INFO("Found " + records.size() + " records");
-                if (!records.isEmpty()) {
-                    // remove current shard iterator from the empty list as we got something
-                    emptyIters.remove(currShardIter);
-                }
-                currRecords.addAll(records);
-                String nextShardIter = getRecordsResult.getNextShardIterator();
-                if (nextShardIter != null) {
-                    shardsQ.addLast(nextShardIter);
-                }
-                if (records.isEmpty()) {
-                    // note that the next iter came from an empty result
-                    emptyIters.add(nextShardIter);
-                }
-                if (shardsQ.isEmpty()) {
-                    // exhausted all of the iterators (closed)
-                    return false;
+                int accepted = 0;
+                for (Record record : records) {
+                    if (accept.test(record)) {
+                        currRecords.add(record);
+                        accepted++;
+                    }
                 }
+                INFO("Found " + records.size() + " records, kept " + accepted);
             }
-
             return true;
         }
 
@@ -262,8 +433,7 @@ public class AbstractCustomerReviews {
             }
 
             // wrap the next record into a value
-            Map<String, AttributeValue> newImage = currRecords.removeFirst().getDynamodb().getNewImage();
-            return CustomerReview.marshallIntoObject(newImage, mapper).asExprValue(valueFactory);
+            return converter.apply(currRecords.removeFirst());
         }
     }
 }
@@ -0,0 +1,258 @@
+package org.partiql.tutorials.ddb.streams;
+
+import com.amazon.ion.IonInt;
+import com.amazon.ion.IonStruct;
+import com.amazonaws.services.dynamodbv2.model.Record;
+import org.HdrHistogram.Histogram;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.partiql.lang.eval.Bindings;
+import org.partiql.lang.eval.EvaluationSession;
+import org.partiql.lang.eval.ExprValue;
+import org.partiql.lang.eval.Expression;
+import org.partiql.tutorials.ddb.streams.utils.CustomerReviewsTsvFileUtils;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Soak test measuring the latency from {@code mapper.save} until the saved change shows up in a PartiQL result.
+ *
+ * A writer updates CustomerReview items at a steady rate, tagging each update with a sequence number stored in
+ * {@code total_votes}. A consumer polls the stream, evaluates a registered query over each batch of records and
+ * records the latency of every tagged update it sees in an HdrHistogram.
+ * Throughput and heap usage are sampled over time and everything is written to a report under
+ * {@code build/reports/soak}.
+ *
+ * Excluded from {@code gradle test}, run with {@code gradle soakTest}. Configured with system properties
+ *
+ * <ul>
+ *     <li>{@code soak.durationSeconds} how long to write for (default 60)</li>
+ *     <li>{@code soak.writesPerSecond} write rate (default 50)</li>
+ *     <li>{@code soak.sampleSeconds} interval between throughput and heap samples (default 1)</li>
+ *     <li>{@code soak.label} name of the build under test, used in the report name (default "local")</li>
+ *     <li>{@code soak.reportDir} where to write the report (default build/reports/soak)</li>
+ * </ul>
+ */
+@Tag("soak")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class CustomerReviewsLatencySoak extends AbstractCustomerReviews {
+
+    private static String CUSTOMER_REVIEWS_DATA = "src/test/resources/customer_reviews.txt";
+    // sequence numbers start above any total_votes in the sample data
+    private static final int FIRST_SEQUENCE = 1_000_000;
+    private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(5);
+    private static final long POLL_INTERVAL_MILLIS = 10;
+    private static final long DRAIN_TIMEOUT_MILLIS = 30_000;
+
+    private final long durationSeconds = Long.getLong("soak.durationSeconds", 60);
+    private final int writesPerSecond = Integer.getInteger("soak.writesPerSecond", 50);
+    private final long sampleSeconds = Long.getLong("soak.sampleSeconds", 1);
+    private final String label = System.getProperty("soak.label", "local");
+    private final String reportDir = System.getProperty("soak.reportDir", "build/reports/soak");
+
+    // sequence number -> System.nanoTime() when mapper.save was called
+    private final Map<Integer, Long> inFlight = new ConcurrentHashMap<>();
+    private final Histogram latencies = new Histogram(MAX_LATENCY_MICROS, 3);
+    private final AtomicInteger nextSequence = new AtomicInteger(FIRST_SEQUENCE);
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong results = new AtomicLong();
+    private final List<Sample> samples = new ArrayList<>();
+    // first failed mapper.save, a throwing task would silently cancel every later write
+    private final AtomicReference<RuntimeException> writeFailure = new AtomicReference<>();
+    private volatile boolean writing;
+
+
+    @Test
+    void commitToResultLatency() throws Exception {
+        loadSampleData(CUSTOMER_REVIEWS_DATA);
+        List<CustomerReview> reviews = CustomerReviewsTsvFileUtils.getCustomerReviews(CUSTOMER_REVIEWS_DATA);
+
+        // registered query, evaluated over each batch of records read from the stream
+        Expression query = pipeline.compile(
+                "SELECT s.customer_id, s.total_votes " +
+                "FROM batch AS s " +
+                "WHERE s.total_votes >= " + FIRST_SEQUENCE);
+        StreamShardReader reader = new StreamShardReader(getStreamsClient(), getShardIds());
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+        long start = System.nanoTime();
+        writing = true;
+        scheduler.scheduleAtFixedRate(() -> write(reviews), 0, TimeUnit.SECONDS.toNanos(1) / writesPerSecond,
+                TimeUnit.NANOSECONDS);
+        scheduler.scheduleAtFixedRate(() -> sample(start), sampleSeconds, sampleSeconds, TimeUnit.SECONDS);
+
+        long stopWriting = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long deadline = stopWriting + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MILLIS);
+        try {
+            while (System.nanoTime() < deadline) {
+                if (writing && System.nanoTime() >= stopWriting) {
+                    writing = false;
+                }
+                if (writeFailure.get() != null || (!writing && inFlight.isEmpty())) {
+                    break;
+                }
+                if (!consume(reader, query)) {
+                    Thread.sleep(POLL_INTERVAL_MILLIS);
+                }
+            }
+        } finally {
+            writing = false;
+            scheduler.shutdown();
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        sample(start);
+
+        Path report = writeReport(System.nanoTime() - start);
+        INFO("Soak report written to " + report);
+        INFO("p50 " + latencies.getValueAtPercentile(50) + "us, " +
+                "p99 " + latencies.getValueAtPercentile(99) + "us, " +
+                "p999 " + latencies.getValueAtPercentile(99.9) + "us, " +
+                "lost " + inFlight.size() + " of " + writes.get());
+        if (writeFailure.get() != null) {
+            fail("Write failed after " + writes.get() + " writes", writeFailure.get());
+        }
+        assertTrue(inFlight.isEmpty(), inFlight.size() + " writes never showed up in the query result");
+    }
+
+    private void write(List<CustomerReview> reviews) {
+        if (!writing) {
+            return;
+        }
+        int sequence = nextSequence.getAndIncrement();
+        CustomerReview review = reviews.get(sequence % reviews.size());
+        CustomerReview update = new CustomerReview(review.getCustomerId(),
+                review.getReviewId(),
+                review.getProductTitle(),
+                review.getStarRating(),
+                review.getHelpfulVotes(),
+                sequence,
+                review.isVerifiedPurchase(),
+                review.getReviewHeading());
+        inFlight.put(sequence, System.nanoTime());
+        try {
+            mapper.save(update);
+        } catch (RuntimeException e) {
+            inFlight.remove(sequence);
+            writeFailure.compareAndSet(null, e);
+            writing = false;
+            return;
+        }
+        writes.incrementAndGet();
+    }
+
+    /**
+     * Read the next batch of records and run the registered query over it.
+     *
+     * @return false when the stream had no new records
+     */
+    private boolean consume(StreamShardReader reader, Expression query) {
+        List<Record> records = reader.nextBatch();
+        if (records == null) {
+            return false;
+        }
+        List<ExprValue> batch = new ArrayList<>(records.size());
+        for (Record record : records) {
+            batch.add(newImageValue(record));
+        }
+        Map<String, ExprValue> globals = new HashMap<>();
+        globals.put("batch", valueFactory.newList(batch));
+        EvaluationSession session = EvaluationSession.builder()
+                .globals(Bindings.ofMap(globals))
+                .build();
+
+        for (ExprValue row : query.eval(session)) {
+            long now = System.nanoTime();
+            int sequence = ((IonInt) ((IonStruct) row.getIonValue()).get("total_votes")).intValue();
+            Long savedAt = inFlight.remove(sequence);
+            if (savedAt != null) {
+                synchronized (latencies) {
+                    latencies.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(now - savedAt), MAX_LATENCY_MICROS));
+                }
+                results.incrementAndGet();
+            }
+        }
+        return true;
+    }
+
+    private void sample(long start) {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        synchronized (samples) {
+            samples.add(new Sample(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                    writes.get(),
+                    results.get(),
+                    memory.getHeapMemoryUsage().getUsed()));
+        }
+    }
+
+    private Path writeReport(long elapsedNanos) throws IOException {
+        Path dir = Paths.get(reportDir);
+        Files.createDirectories(dir);
+        Path report = dir.resolve("latency-" + label + "-" + System.currentTimeMillis() + ".txt");
+        double seconds = elapsedNanos / 1e9;
+        try (PrintStream out = new PrintStream(Files.newOutputStream(report), false, "UTF-8")) {
+            out.println("label                " + label);
+            out.println("duration.seconds     " + durationSeconds);
+            out.println("writes.per.second    " + writesPerSecond);
+            out.println("writes               " + writes.get());
+            out.println("results              " + results.get());
+            out.println("lost                 " + inFlight.size());
+            if (writeFailure.get() != null) {
+                out.println("write.failure        " + writeFailure.get());
+            }
+            out.printf("throughput.per.second %.1f%n", results.get() / seconds);
+            synchronized (latencies) {
+                out.println("latency.p50.us       " + latencies.getValueAtPercentile(50));
+                out.println("latency.p99.us       " + latencies.getValueAtPercentile(99));
+                out.println("latency.p999.us      " + latencies.getValueAtPercentile(99.9));
+                out.println("latency.max.us       " + latencies.getMaxValue());
+                out.println();
+                out.println("# elapsed.ms writes results heap.used.bytes");
+                synchronized (samples) {
+                    for (Sample sample : samples) {
+                        out.println(sample.elapsedMillis + " " + sample.writes + " " +
+                                sample.results + " " + sample.heapUsed);
+                    }
+                }
+                out.println();
+                out.println("# latency distribution in milliseconds");
+                latencies.outputPercentileDistribution(out, 1000.0);
+            }
+        }
+        return report;
+    }
+
+    private static class Sample {
+        final long elapsedMillis;
+        final long writes;
+        final long results;
+        final long heapUsed;
+
+        Sample(long elapsedMillis, long writes, long results, long heapUsed) {
+            this.elapsedMillis = elapsedMillis;
+            this.writes = writes;
+            this.results = results;
+            this.heapUsed = heapUsed;
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package org.partiql.tutorials.ddb.streams;
 
+import com.amazon.ion.IonStruct;
+import com.amazon.ion.IonText;
+import com.amazon.ion.IonValue;
 import com.amazonaws.services.dynamodbv2.model.StreamSpecification;
 import com.amazonaws.services.dynamodbv2.model.StreamViewType;
 import com.google.common.collect.Lists;
@@ -16,6 +19,8 @@ import java.io.IOException;
 import java.util.*;
 import java.util.stream.Stream;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
 @TestInstance(TestInstance.Lifecycle.PER_CLASS)
 public class CustomerReviewsNewAndOldImages extends AbstractCustomerReviews {
 
@@ -29,10 +34,14 @@ public class CustomerReviewsNewAndOldImages extends AbstractCustomerReviews {
     void reviewsWith5Stars() throws IOException {
         loadSampleData(CUSTOMER_REVIEWS_DATA);
         loadSampleData(CUSTOMER_REVIEWS_UPDATES);
-        Iterable<ExprValue> newImagesExprVals = getRecordUpdates(StreamViewType.NEW_IMAGE);
-        Iterable<ExprValue> oldImagesExprVals = getRecordUpdates(StreamViewType.OLD_IMAGE);
-        ArrayList<ExprValue> lnew = Lists.newArrayList(newImagesExprVals); // JOIN needs to re-iterate the list, iterators are read once
-        ArrayList<ExprValue> lold = Lists.newArrayList(oldImagesExprVals);
+        // read the stream once, each change event carries both images
+        // JOIN needs to re-iterate the lists, iterators are read once
+        ArrayList<ExprValue> lnew = new ArrayList<>();
+        ArrayList<ExprValue> lold = new ArrayList<>();
+        for (ExprValue event : getRecordUpdates(StreamViewType.NEW_AND_OLD_IMAGES)) {
+            lnew.add(image(event, "new"));
+            lold.add(image(event, "old"));
+        }
 
 
         // PartiQL query
@@ -74,6 +83,53 @@ public class CustomerReviewsNewAndOldImages extends AbstractCustomerReviews {
         });
     }
 
+    @Test
+    void starRatingChanges() throws IOException {
+        loadSampleData(CUSTOMER_REVIEWS_DATA);
+        loadSampleData(CUSTOMER_REVIEWS_UPDATES);
+        // each record is a single value holding eventName, keys, old, new and changed
+        List<ExprValue> changeEvents = Lists.newArrayList(getRecordUpdates(StreamViewType.NEW_AND_OLD_IMAGES));
+
+        // the updates set the star rating to 4 and total votes to 3 of two reviews, other attributes are unchanged
+        IonValue expectedChange = valueFactory.getIon().singleValue("{star_rating: 4, total_votes: 3}");
+        int modified = 0;
+        for (ExprValue event : changeEvents) {
+            IonStruct struct = (IonStruct) event.getIonValue();
+            if ("MODIFY".equals(((IonText) struct.get("eventName")).stringValue())) {
+                assertEquals(expectedChange, struct.get("changed"));
+                modified++;
+            }
+        }
+        assertEquals(2, modified);
+
+        // PartiQL query, only looks at the changed attributes instead of joining old and new images
+        String query = "SELECT e.keys.customer_id AS id, " +
+                "e.old.star_rating AS ostar, " +
+                "e.changed.star_rating AS nstar " +
+                "FROM changes AS e " +
+                "WHERE e.eventName = 'MODIFY' AND e.changed.star_rating IS NOT MISSING";
+
+        Expression expr = pipeline.compile(query);
+
+        Map<String, ExprValue> globals = new HashMap<>();
+        globals.put("changes", valueFactory.newList(changeEvents));
+
+        final EvaluationSession session = EvaluationSession.builder()
+                .globals(Bindings.ofMap(globals))
+                .build();
+
+        System.out.println(query + "\n\t => \n" + expr.eval(session));
+        printHL();
+    }
+
+    /**
+     * @return the image of the change event, PartiQL null when the event has none
+     */
+    private ExprValue image(ExprValue changeEvent, String image) {
+        IonValue value = ((IonStruct) changeEvent.getIonValue()).get(image);
+        return value == null ? valueFactory.getNullValue() : valueFactory.newFromIonValue(value);
+    }
+
     private void printHL() {
         for(int i = 0; i < LINE_LENGTH; i++) System.out.print("-");
         System.out.println();
@@ -0,0 +1,141 @@
+package org.partiql.tutorials.ddb.streams;
+
+import com.amazonaws.services.dynamodbv2.model.Record;
+import com.amazonaws.services.dynamodbv2.model.StreamViewType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.partiql.lang.eval.Bindings;
+import org.partiql.lang.eval.EvaluationSession;
+import org.partiql.lang.eval.ExprValue;
+import org.partiql.lang.eval.Expression;
+import org.partiql.tutorials.ddb.streams.utils.CustomerReviewsTsvFileUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class CustomerReviewsPreFilter extends AbstractCustomerReviews {
+
+    private static String CUSTOMER_REVIEWS_DATA = "src/test/resources/customer_reviews.txt";
+    // number of new images turned into PartiQL values
+    private int conversions;
+
+    @Override
+    protected ExprValue newImageValue(Record record) {
+        conversions++;
+        return super.newImageValue(record);
+    }
+
+    @Test
+    void reviewsWith5Stars() throws IOException {
+        loadSampleData(CUSTOMER_REVIEWS_DATA);
+
+        // PartiQL query
+        String partiQLQuery =
+                "SELECT s.customer_id, s.star_rating " +
+                "FROM ddbstream AS s " +
+                "WHERE s.star_rating = 5 AND s.total_votes >= 0";
+
+        // Pull the simple comparisons out of the query, checked on the raw images before any conversion
+        AttributePreFilter preFilter = preFilter(partiQLQuery, "ddbstream");
+        INFO("Pre-filter: " + preFilter);
+        assertFalse(preFilter.isEmpty());
+
+        Expression expr = pipeline.compile(partiQLQuery);
+
+        // the full query still runs over the records that pass, so both give the same result
+        conversions = 0;
+        List<String> filtered = evaluate(expr, getRecordUpdates(StreamViewType.NEW_IMAGE, preFilter));
+        int filteredConversions = conversions;
+        conversions = 0;
+        List<String> unfiltered = evaluate(expr, getRecordUpdates(StreamViewType.NEW_IMAGE));
+        int unfilteredConversions = conversions;
+        INFO("PartiQL query result is : " + filtered);
+        INFO("Converted " + filteredConversions + " records with and " + unfilteredConversions + " without pre-filter");
+        assertEquals(unfiltered, filtered);
+
+        // only the 5 star reviews were converted
+        List<CustomerReview> reviews = CustomerReviewsTsvFileUtils.getCustomerReviews(CUSTOMER_REVIEWS_DATA);
+        long fiveStars = reviews.stream().filter(cr -> cr.getStarRating() == 5).count();
+        assertEquals(reviews.size(), unfilteredConversions);
+        assertEquals(fiveStars, filteredConversions);
+    }
+
+    @Test
+    void atPositionKeepsAllRecords() throws IOException {
+        loadSampleData(CUSTOMER_REVIEWS_DATA);
+
+        // i numbers all records, dropping records before the query would renumber the 5 star ones
+        String partiQLQuery =
+                "SELECT i, s.customer_id " +
+                "FROM ddbstream AS s AT i " +
+                "WHERE s.star_rating = 5";
+
+        AttributePreFilter preFilter = preFilter(partiQLQuery, "ddbstream");
+        INFO("Pre-filter: " + preFilter);
+        assertTrue(preFilter.isEmpty());
+
+        Expression expr = pipeline.compile(partiQLQuery);
+        List<String> filtered = evaluate(expr, getRecordUpdates(StreamViewType.NEW_IMAGE, preFilter));
+        List<String> unfiltered = evaluate(expr, getRecordUpdates(StreamViewType.NEW_IMAGE));
+        INFO("PartiQL query result is : " + filtered);
+        assertFalse(unfiltered.isEmpty());
+        assertEquals(unfiltered, filtered);
+    }
+
+    @Test
+    void subqueryKeepsAllRecords() throws IOException {
+        loadSampleData(CUSTOMER_REVIEWS_DATA);
+
+        // s.star_rating is the raw helpful_votes here, filtering on the raw star_rating would lose rows
+        String partiQLQuery =
+                "SELECT s.customer_id " +
+                "FROM (SELECT r.customer_id, r.helpful_votes AS star_rating FROM ddbstream AS r) AS s " +
+                "WHERE s.star_rating = 1";
+
+        AttributePreFilter preFilter = preFilter(partiQLQuery, "ddbstream");
+        INFO("Pre-filter: " + preFilter);
+        assertTrue(preFilter.isEmpty());
+
+        Expression expr = pipeline.compile(partiQLQuery);
+        List<String> filtered = evaluate(expr, getRecordUpdates(StreamViewType.NEW_IMAGE, preFilter));
+        List<String> unfiltered = evaluate(expr, getRecordUpdates(StreamViewType.NEW_IMAGE));
+        INFO("PartiQL query result is : " + filtered);
+        assertFalse(unfiltered.isEmpty());
+        assertEquals(unfiltered, filtered);
+    }
+
+    @Test
+    void otherReferenceKeepsAllRecords() {
+        // the scalar subquery must count every record, not only the 5 star ones
+        String partiQLQuery =
+                "SELECT s.customer_id, (SELECT COUNT(*) FROM ddbstream AS r) AS reviews " +
+                "FROM ddbstream AS s " +
+                "WHERE s.star_rating = 5";
+
+        assertTrue(preFilter(partiQLQuery, "ddbstream").isEmpty());
+    }
+
+    private List<String> evaluate(Expression expr, Iterable<ExprValue> exprVals) {
+        Map<String, ExprValue> globals = new HashMap<>();
+        globals.put("ddbstream", valueFactory.newList(exprVals));
+
+        final EvaluationSession session = EvaluationSession.builder()
+                .globals(Bindings.ofMap(globals))
+                .build();
+
+        List<String> rows = new ArrayList<>();
+        for (ExprValue row : expr.eval(session)) {
+            rows.add(row.getIonValue().toString());
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,86 @@
+package org.partiql.tutorials.ddb.streams;
+
+import com.amazonaws.services.dynamodbv2.model.Record;
+import com.amazonaws.services.dynamodbv2.model.StreamViewType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.partiql.lang.eval.Bindings;
+import org.partiql.lang.eval.EvaluationSession;
+import org.partiql.lang.eval.ExprValue;
+import org.partiql.lang.eval.Expression;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class CustomerReviewsPrefetch extends AbstractCustomerReviews {
+
+    private static String CUSTOMER_REVIEWS_DATA = "src/test/resources/customer_reviews.txt";
+    private static String CUSTOMER_REVIEWS_UPDATES = "src/test/resources/customer_reviews_updates.txt";
+
+
+    @Override
+    protected int getPrefetchBatches() {
+        return 4;
+    }
+
+    @Override
+    protected long getPrefetchBytes() {
+        // a few sample records, the reader keeps fetching one batch at a time above it
+        return 1024;
+    }
+
+    @Test
+    void reviewsWith5Stars() throws IOException {
+        loadSampleData(CUSTOMER_REVIEWS_DATA);
+        loadSampleData(CUSTOMER_REVIEWS_UPDATES);
+        // records are fetched in the background while the query evaluates the previous ones
+        Iterable<ExprValue> exprVals = getRecordUpdates(StreamViewType.NEW_IMAGE);
+
+        // PartiQL query
+        String partiQLQuery =
+                "SELECT s.customer_id, s.star_rating " +
+                "FROM ddbstream AS s " +
+                "WHERE s.star_rating = 5";
+
+        Expression expr = pipeline.compile(partiQLQuery);
+
+        Map<String, ExprValue> globals = new HashMap<>();
+        globals.put("ddbstream", valueFactory.newList(exprVals));
+
+        final EvaluationSession session = EvaluationSession.builder()
+                .globals(Bindings.ofMap(globals))
+                .build();
+
+        INFO("PartiQL query result is : " + expr.eval(session));
+    }
+
+    @Test
+    void sameRecordsAsPlainReader() throws IOException {
+        loadSampleData(CUSTOMER_REVIEWS_DATA);
+        loadSampleData(CUSTOMER_REVIEWS_UPDATES);
+
+        List<String> plain = sequenceNumbers(new StreamShardReader(getStreamsClient(), getShardIds()));
+        PrefetchingShardReader prefetcher = (PrefetchingShardReader) newRecordSource(getShardIds());
+        List<String> prefetched = sequenceNumbers(prefetcher);
+        // every batch fetched ahead was handed out
+        assertEquals(0, prefetcher.getBufferedBytes());
+        INFO("Read " + plain.size() + " records without and " + prefetched.size() + " with prefetching");
+        assertEquals(plain, prefetched);
+    }
+
+    private static List<String> sequenceNumbers(RecordBatchSource source) {
+        List<String> result = new ArrayList<>();
+        List<Record> records;
+        while ((records = source.nextBatch()) != null) {
+            records.forEach(r -> result.add(r.getDynamodb().getSequenceNumber()));
+        }
+        return result;
+    }
+}
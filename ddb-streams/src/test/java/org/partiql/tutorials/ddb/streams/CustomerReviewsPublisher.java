@@ -0,0 +1,200 @@
+package org.partiql.tutorials.ddb.streams;
+
+import com.amazonaws.services.dynamodbv2.model.StreamViewType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.partiql.lang.eval.Bindings;
+import org.partiql.lang.eval.EvaluationSession;
+import org.partiql.lang.eval.ExprValue;
+import org.partiql.lang.eval.Expression;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class CustomerReviewsPublisher extends AbstractCustomerReviews {
+
+    private static String CUSTOMER_REVIEWS_DATA = "src/test/resources/customer_reviews.txt";
+    // fewer than the sample records so that the subscriber asks for more several times
+    private static final int BATCH_SIZE = 4;
+    private static final int PAUSE_AFTER = 3;
+
+
+    @Test
+    void reviewsWith5Stars() throws Exception {
+        loadSampleData(CUSTOMER_REVIEWS_DATA);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // Subscribe to the stream, asking for BATCH_SIZE values at a time
+            CompletableFuture<List<ExprValue>> received = new CompletableFuture<>();
+            getRecordUpdatesPublisher(StreamViewType.NEW_IMAGE, executor).subscribe(new BatchingSubscriber(received));
+            List<ExprValue> exprVals = received.get(1, TimeUnit.MINUTES);
+            INFO("Received " + exprVals.size() + " values from the publisher");
+            assertFalse(exprVals.isEmpty());
+
+            // the publisher sees the same records as the iterator
+            int iteratorCount = 0;
+            for (ExprValue ignored : getRecordUpdates(StreamViewType.NEW_IMAGE)) {
+                iteratorCount++;
+            }
+            assertEquals(iteratorCount, exprVals.size());
+
+            // PartiQL query
+            String partiQLQuery =
+                    "SELECT s.customer_id, s.star_rating " +
+                    "FROM ddbstream AS s " +
+                    "WHERE s.star_rating = 5";
+            Expression expr = pipeline.compile(partiQLQuery);
+
+            Map<String, ExprValue> globals = new HashMap<>();
+            globals.put("ddbstream", valueFactory.newList(exprVals));
+
+            final EvaluationSession session = EvaluationSession.builder()
+                    .globals(Bindings.ofMap(globals))
+                    .build();
+
+            INFO("PartiQL query result is : " + expr.eval(session));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void pausesWithoutDemand() throws Exception {
+        loadSampleData(CUSTOMER_REVIEWS_DATA);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // count the GetRecords polls made by the publisher
+            RecordBatchSource reader = newRecordSource(getShardIds());
+            AtomicInteger polls = new AtomicInteger();
+            RecordBatchSource countingReader = () -> {
+                polls.incrementAndGet();
+                return reader.nextBatch();
+            };
+            StreamRecordPublisher publisher =
+                    new StreamRecordPublisher(countingReader, makeConverter(StreamViewType.NEW_IMAGE), executor);
+
+            PausingSubscriber subscriber = new PausingSubscriber(polls);
+            publisher.subscribe(subscriber);
+            assertTrue(subscriber.paused.await(1, TimeUnit.MINUTES));
+
+            // the publisher signals on the single executor thread, once this task ran it has returned from polling
+            executor.submit(() -> { }).get(1, TimeUnit.MINUTES);
+            INFO("Paused after " + subscriber.values.size() + " values and " + polls.get() + " polls");
+            assertEquals(PAUSE_AFTER, subscriber.values.size());
+            assertEquals(subscriber.pollsAtPause, polls.get());
+            assertFalse(subscriber.result.isDone());
+
+            // asking for more resumes the polling
+            subscriber.subscription.request(Long.MAX_VALUE);
+            List<ExprValue> exprVals = subscriber.result.get(1, TimeUnit.MINUTES);
+            int iteratorCount = 0;
+            for (ExprValue ignored : getRecordUpdates(StreamViewType.NEW_IMAGE)) {
+                iteratorCount++;
+            }
+            assertEquals(iteratorCount, exprVals.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Requests {@link #PAUSE_AFTER} values and then nothing until told to.
+     */
+    private static class PausingSubscriber implements Subscriber<ExprValue> {
+
+        private final AtomicInteger polls;
+        private final CompletableFuture<List<ExprValue>> result = new CompletableFuture<>();
+        private final List<ExprValue> values = new ArrayList<>();
+        private final CountDownLatch paused = new CountDownLatch(1);
+        private volatile Subscription subscription;
+        private volatile int pollsAtPause;
+
+        PausingSubscriber(AtomicInteger polls) {
+            this.polls = polls;
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            subscription = s;
+            s.request(PAUSE_AFTER);
+        }
+
+        @Override
+        public void onNext(ExprValue value) {
+            values.add(value);
+            if (values.size() == PAUSE_AFTER) {
+                pollsAtPause = polls.get();
+                paused.countDown();
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            result.completeExceptionally(t);
+            paused.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            result.complete(values);
+            paused.countDown();
+        }
+    }
+
+    /**
+     * Collects all values, requesting a new batch only once the previous one has been received.
+     */
+    private static class BatchingSubscriber implements Subscriber<ExprValue> {
+
+        private final CompletableFuture<List<ExprValue>> result;
+        private final List<ExprValue> values = new ArrayList<>();
+        private Subscription subscription;
+        private int outstanding;
+
+        BatchingSubscriber(CompletableFuture<List<ExprValue>> result) {
+            this.result = result;
+        }
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            subscription = s;
+            outstanding = BATCH_SIZE;
+            s.request(BATCH_SIZE);
+        }
+
+        @Override
+        public void onNext(ExprValue value) {
+            values.add(value);
+            if (--outstanding == 0) {
+                outstanding = BATCH_SIZE;
+                subscription.request(BATCH_SIZE);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            result.completeExceptionally(t);
+        }
+
+        @Override
+        public void onComplete() {
+            result.complete(values);
+        }
+    }
+}
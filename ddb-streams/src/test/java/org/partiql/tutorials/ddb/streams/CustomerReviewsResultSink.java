@@ -0,0 +1,66 @@
+package org.partiql.tutorials.ddb.streams;
+
+import com.amazon.ion.IonDatagram;
+import com.amazon.ion.system.IonSystemBuilder;
+import com.amazonaws.services.dynamodbv2.model.StreamViewType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.partiql.lang.eval.Bindings;
+import org.partiql.lang.eval.EvaluationSession;
+import org.partiql.lang.eval.ExprValue;
+import org.partiql.lang.eval.Expression;
+import org.partiql.tutorials.ddb.streams.sink.ResultSink;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class CustomerReviewsResultSink extends AbstractCustomerReviews {
+
+    private static String CUSTOMER_REVIEWS_DATA = "src/test/resources/customer_reviews.txt";
+
+
+    @Test
+    void reviewsWith5StarsToFiles() throws IOException {
+        loadSampleData(CUSTOMER_REVIEWS_DATA);
+
+        // PartiQL query
+        String partiQLQuery =
+                "SELECT s.customer_id, s.star_rating " +
+                "FROM ddbstream AS s " +
+                "WHERE s.star_rating = 5";
+
+        // Compile the query
+        Expression expr = pipeline.compile(partiQLQuery);
+
+        for (ResultSink.Format format : ResultSink.Format.values()) {
+            // each evaluation reads the stream again, rows are written out as the stream is read
+            Map<String, ExprValue> globals = new HashMap<>();
+            globals.put("ddbstream", valueFactory.newList(getRecordUpdates(StreamViewType.NEW_IMAGE)));
+
+            final EvaluationSession session = EvaluationSession.builder()
+                    .globals(Bindings.ofMap(globals))
+                    .build();
+
+            Path out = Files.createTempFile("customer_reviews", "." + format.name().toLowerCase());
+            long rows;
+            try (ResultSink sink = ResultSink.create(format, FileChannel.open(out, StandardOpenOption.WRITE))) {
+                rows = sink.write(expr.eval(session));
+            }
+            INFO("Wrote " + rows + " rows as " + format + " to " + out);
+
+            // all three formats can be read back as Ion
+            IonDatagram written = IonSystemBuilder.standard().build().getLoader().load(out.toFile());
+            assertEquals(rows, written.size());
+            Files.delete(out);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.partiql.tutorials.ddb.streams;
+
+import com.amazonaws.services.dynamodbv2.model.StreamViewType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.partiql.lang.eval.Bindings;
+import org.partiql.lang.eval.EvaluationSession;
+import org.partiql.lang.eval.ExprValue;
+import org.partiql.lang.eval.Expression;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class CustomerReviewsSharedStream extends AbstractCustomerReviews {
+
+    private static String CUSTOMER_REVIEWS_DATA = "src/test/resources/customer_reviews.txt";
+    private static String CUSTOMER_REVIEWS_UPDATES = "src/test/resources/customer_reviews_updates.txt";
+    // small enough for the slow consumer policies to kick in
+    private static final int SUBSCRIBER_CAPACITY = 2;
+
+
+    @Test
+    void manyQueriesOneRead() throws Exception {
+        loadSampleData(CUSTOMER_REVIEWS_DATA);
+        loadSampleData(CUSTOMER_REVIEWS_UPDATES);
+
+        // PartiQL queries, each evaluated on its own thread over its own subscriber
+        Map<String, String> queries = new LinkedHashMap<>();
+        queries.put("fiveStars", "SELECT s.customer_id FROM ddbstream AS s WHERE s.star_rating = 5");
+        queries.put("helpful", "SELECT s.customer_id, s.helpful_votes FROM ddbstream AS s WHERE s.helpful_votes > 0");
+        queries.put("all", "SELECT VALUE s.customer_id FROM ddbstream AS s");
+
+        // the stream is read and converted once for all queries
+        StreamRecordMultiplexer multiplexer = newMultiplexer(StreamViewType.NEW_IMAGE);
+        Map<String, StreamRecordMultiplexer.Subscriber> subscribers = new LinkedHashMap<>();
+        subscribers.put("fiveStars",
+                multiplexer.subscribe("fiveStars", SUBSCRIBER_CAPACITY, StreamRecordMultiplexer.SlowConsumerPolicy.BLOCK));
+        subscribers.put("helpful",
+                multiplexer.subscribe("helpful", SUBSCRIBER_CAPACITY, StreamRecordMultiplexer.SlowConsumerPolicy.SPILL));
+        subscribers.put("all",
+                multiplexer.subscribe("all", SUBSCRIBER_CAPACITY, StreamRecordMultiplexer.SlowConsumerPolicy.DROP));
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Map<String, Future<List<String>>> results = new LinkedHashMap<>();
+            for (Map.Entry<String, String> query : queries.entrySet()) {
+                Expression expr = pipeline.compile(query.getValue());
+                StreamRecordMultiplexer.Subscriber subscriber = subscribers.get(query.getKey());
+                results.put(query.getKey(), executor.submit(() -> evaluate(expr, subscriber)));
+            }
+            multiplexer.run();
+
+            for (Map.Entry<String, Future<List<String>>> result : results.entrySet()) {
+                StreamRecordMultiplexer.Subscriber subscriber = subscribers.get(result.getKey());
+                INFO(queries.get(result.getKey()) + " => " + result.getValue().get(1, TimeUnit.MINUTES));
+                INFO(subscriber.getName() + ": delivered " + subscriber.getDelivered() +
+                        ", dropped " + subscriber.getDropped() +
+                        ", spilled " + subscriber.getSpilled());
+            }
+            INFO("Read " + multiplexer.getRecordsRead() + " records once for " + queries.size() + " queries");
+
+            // BLOCK and SPILL subscribers see every record, DROP may lose some when its query falls behind
+            assertEquals(multiplexer.getRecordsRead(), subscribers.get("fiveStars").getDelivered());
+            assertEquals(multiplexer.getRecordsRead(), subscribers.get("helpful").getDelivered());
+            assertEquals(multiplexer.getRecordsRead(),
+                    subscribers.get("all").getDelivered() + subscribers.get("all").getDropped());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private List<String> evaluate(Expression expr, StreamRecordMultiplexer.Subscriber subscriber) {
+        Map<String, ExprValue> globals = new HashMap<>();
+        globals.put("ddbstream", valueFactory.newList(subscriber));
+
+        final EvaluationSession session = EvaluationSession.builder()
+                .globals(Bindings.ofMap(globals))
+                .build();
+
+        // close the subscriber even if the query fails, so a BLOCK subscriber cannot stall the shared read
+        try {
+            List<String> rows = new ArrayList<>();
+            for (ExprValue row : expr.eval(session)) {
+                rows.add(row.getIonValue().toString());
+            }
+            return rows;
+        } finally {
+            subscriber.close();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.partiql.tutorials.ddb.streams;
+
+import com.amazon.ion.IonStruct;
+import com.amazon.ion.IonText;
+import com.amazonaws.services.dynamodbv2.model.Record;
+import com.amazonaws.services.dynamodbv2.model.StreamViewType;
+import com.google.common.collect.Lists;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+import org.partiql.lang.eval.Bindings;
+import org.partiql.lang.eval.EvaluationSession;
+import org.partiql.lang.eval.ExprValue;
+import org.partiql.lang.eval.Expression;
+import org.partiql.tutorials.ddb.streams.sketches.CountMinSketch;
+import org.partiql.tutorials.ddb.streams.sketches.HyperLogLog;
+import org.partiql.tutorials.ddb.streams.sketches.TopK;
+import org.partiql.tutorials.ddb.streams.utils.CustomerReviewsTsvFileUtils;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class CustomerReviewsSketches extends AbstractCustomerReviews {
+
+    private static String CUSTOMER_REVIEWS_DATA = "src/test/resources/customer_reviews.txt";
+
+
+    @Test
+    void sketchFunctions() throws IOException {
+        loadSampleData(CUSTOMER_REVIEWS_DATA);
+        Iterable<ExprValue> exprVals = getRecordUpdates(StreamViewType.NEW_IMAGE);
+
+        // PartiQL query, each function consumes its collection once with a fixed size sketch
+        String partiQLQuery =
+                "{ 'distinct_customers': approx_count_distinct(SELECT VALUE s.customer_id FROM ddbstream AS s), " +
+                "  'most_reviewed': approx_top_k(SELECT VALUE s.product_title FROM ddbstream AS s, 3) }";
+
+        Expression expr = pipeline.compile(partiQLQuery);
+
+        // a list value re-iterates its iterable, read the stream once for both functions
+        Map<String, ExprValue> globals = new HashMap<>();
+        globals.put("ddbstream", valueFactory.newList(Lists.newArrayList(exprVals)));
+
+        final EvaluationSession session = EvaluationSession.builder()
+                .globals(Bindings.ofMap(globals))
+                .build();
+
+        INFO("PartiQL query result is : " + expr.eval(session));
+    }
+
+    @Test
+    void mergeShardSketches() throws IOException {
+        loadSampleData(CUSTOMER_REVIEWS_DATA);
+
+        // build one set of sketches per shard as the records arrive, then merge them
+        HyperLogLog distinctCustomers = new HyperLogLog();
+        CountMinSketch titleFrequencies = new CountMinSketch();
+        TopK mostReviewed = new TopK();
+        for (StreamShardReader reader : getShardReaders()) {
+            HyperLogLog shardCustomers = new HyperLogLog();
+            CountMinSketch shardFrequencies = new CountMinSketch();
+            TopK shardMostReviewed = new TopK();
+            List<Record> records;
+            while ((records = reader.nextBatch()) != null) {
+                for (Record record : records) {
+                    ExprValue review = newImageValue(record);
+                    ExprValue customerId = valueFactory.newFromIonValue(
+                            ((IonStruct) review.getIonValue()).get("customer_id").clone());
+                    ExprValue productTitle = valueFactory.newFromIonValue(
+                            ((IonStruct) review.getIonValue()).get("product_title").clone());
+                    shardCustomers.add(customerId);
+                    shardFrequencies.add(productTitle);
+                    shardMostReviewed.add(productTitle);
+                }
+            }
+            distinctCustomers.merge(shardCustomers);
+            titleFrequencies.merge(shardFrequencies);
+            mostReviewed.merge(shardMostReviewed);
+        }
+
+        List<CustomerReview> reviews = CustomerReviewsTsvFileUtils.getCustomerReviews(CUSTOMER_REVIEWS_DATA);
+        Set<String> customers = new HashSet<>();
+        reviews.forEach(cr -> customers.add(cr.getCustomerId()));
+
+        INFO("Distinct customers: exact " + customers.size() + ", estimated " + distinctCustomers.estimate());
+        INFO("Most reviewed products: " + mostReviewed.top(3));
+        // linear counting is close to exact for small cardinalities
+        assertTrue(Math.abs(distinctCustomers.estimate() - customers.size()) <= Math.max(2, customers.size() / 20));
+        assertEquals(reviews.size(), titleFrequencies.getTotal());
+    }
+
+    @Test
+    void mergeFullTopKSketches() {
+        // two skewed shards with more distinct values than counters, so both sketches evict
+        int capacity = 5;
+        TopK first = new TopK(capacity);
+        TopK second = new TopK(capacity);
+        Map<String, Long> trueCounts = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            TopK shard = i % 2 == 0 ? first : second;
+            // each shard favours different values
+            int value = (int) Math.abs(random.nextGaussian() * 4) + (shard == first ? 0 : 3);
+            String item = "product-" + value;
+            shard.add(valueFactory.newString(item));
+            trueCounts.merge(item, 1L, Long::sum);
+        }
+        first.merge(second);
+
+        List<TopK.Counter> merged = first.top(capacity);
+        INFO("Merged heavy hitters: " + merged);
+        assertEquals(capacity, merged.size());
+        for (TopK.Counter counter : merged) {
+            long trueCount = trueCounts.get(((IonText) counter.getItem()).stringValue());
+            assertTrue(counter.getCount() >= trueCount, counter + " underestimates " + trueCount);
+            assertTrue(counter.getCount() - counter.getError() <= trueCount, counter + " error is too small");
+        }
+    }
+}